@@ -0,0 +1,34 @@
+
+package dak.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The VM the classes are swapped on by {@link SwapBenchmark}. It loads the synthetic
+ * classes and the population classes, prints <code>ready &lt;pid&gt;</code>, and then
+ * waits until its standard input is closed, so that it never outlives the benchmark.
+ * <p/>
+ * Usage: <code>BenchTarget &lt;classes&gt; &lt;population&gt;</code>
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+public class BenchTarget {
+	// keeps the classes reachable, so they stay loaded
+	private static final List<Class<?>> loaded = new ArrayList<Class<?>>();
+
+	public static void main(String [] args) throws Exception {
+		int classes = Integer.parseInt(args[0]);
+		int population = Integer.parseInt(args[1]);
+		for (int i=0; i<classes; i++)
+			loaded.add(Class.forName(SwapBenchmark.SWAPPED_PACKAGE + ".C" + i));
+		for (int i=0; i<population; i++)
+			loaded.add(Class.forName(SwapBenchmark.POPULATION_PACKAGE + ".P" + i));
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		System.out.println("ready " + name.substring(0, name.indexOf('@')));
+		System.out.flush();
+		while (System.in.read() != -1) { }
+		System.exit(0);
+	}
+}
@@ -0,0 +1,456 @@
+
+package dak.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+
+import dak.ant.taskdefs.Hotswap;
+import dak.ant.taskdefs.SearchReplace;
+import dak.debug.HotSwapHelper;
+
+/**
+ * Measures the swap path and the search and replace path, to catch regressions in
+ * their throughput. For each number of classes, class size and number of other
+ * classes loaded in the VM (the population), it generates two versions of a set of
+ * synthetic classes, starts a local {@link BenchTarget} VM with the JDWP agent (or
+ * without, for the agent transport), and times:
+ * <ul>
+ * <li/>attaching (the first time, with the loading of JDI itself), and the first
+ * lookup of the classes, which indexes the VM
+ * <li/>{@link HotSwapHelper#replace(Map)} of the whole set, over a kept connection
+ * <li/>a complete run of the {@link Hotswap} task: scan, attach, lookup, read, redefine
+ * </ul>
+ * The {@link SearchReplace} task is timed on generated text files.
+ * <p/>
+ * Each measure is repeated after some warmup rounds, and the median and the best
+ * of the rounds are reported. Usage, all the options being optional:
+ * <code>
+ *   java -cp build/bench:build/classes:ant.jar dak.bench.SwapBenchmark
+ *   -classes 10,100,1000 -size 1,16 -population 0,5000 -warmup 2 -iterations 5
+ *   -transport jdwp|agent -text 32 -only swap|searchreplace -work dir
+ * </code><br/>
+ * with the class size in KB and the text size in MB. The classes and texts are
+ * generated in hotswap-bench under the temporary directory, unless -work tells where,
+ * and kept there for the next runs. The build runs it with
+ * <code>ant bench -Dbench.args="..."</code>.
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+public class SwapBenchmark {
+	static final String SWAPPED_PACKAGE = "bench.gen";
+	static final String POPULATION_PACKAGE = "bench.pop";
+	// the longest string constant a class file takes is 65535 bytes
+	private static final int CHUNK = 16*1024;
+	private static final int TEXT_FILES = 16;
+	private static final String FIND_A = "HOTSWAP_A";
+	private static final String FIND_B = "HOTSWAP_B";
+
+	private int [] classCounts = {10, 100, 1000};
+	private int [] sizes = {1, 16};
+	private int [] populations = {0, 5000};
+	private int warmup = 2;
+	private int iterations = 5;
+	private String transport = "jdwp";
+	private int textMegabytes = 32;
+	private String only;
+	private File work = new File(System.getProperty("java.io.tmpdir"), "hotswap-bench");
+
+	public static void main(String [] args) throws Exception {
+		SwapBenchmark bench = new SwapBenchmark();
+		for (int i=0; i<args.length-1; i+=2) {
+			if ("-classes".equals(args[i]))
+				bench.classCounts = parseList(args[i+1]);
+			else if ("-size".equals(args[i]))
+				bench.sizes = parseList(args[i+1]);
+			else if ("-population".equals(args[i]))
+				bench.populations = parseList(args[i+1]);
+			else if ("-warmup".equals(args[i]))
+				bench.warmup = Integer.parseInt(args[i+1]);
+			else if ("-iterations".equals(args[i]))
+				bench.iterations = Integer.parseInt(args[i+1]);
+			else if ("-transport".equals(args[i]))
+				bench.transport = args[i+1];
+			else if ("-text".equals(args[i]))
+				bench.textMegabytes = Integer.parseInt(args[i+1]);
+			else if ("-only".equals(args[i]))
+				bench.only = args[i+1];
+			else if ("-work".equals(args[i]))
+				bench.work = new File(args[i+1]);
+			else
+				throw new IllegalArgumentException("unknown option " + args[i]);
+		}
+		if (args.length % 2 != 0)
+			throw new IllegalArgumentException("missing value for " + args[args.length-1]);
+		if (!"jdwp".equals(bench.transport) && !"agent".equals(bench.transport))
+			throw new IllegalArgumentException("unknown transport " + bench.transport);
+		if (bench.iterations < 1)
+			throw new IllegalArgumentException("at least one iteration");
+
+		if (bench.only == null || "swap".equals(bench.only))
+			bench.benchSwap();
+		if (bench.only == null || "searchreplace".equals(bench.only))
+			bench.benchSearchReplace();
+	}
+
+	private static int [] parseList(String list) {
+		String [] parts = list.split(",");
+		int [] ret = new int[parts.length];
+		for (int i=0; i<parts.length; i++)
+			ret[i] = Integer.parseInt(parts[i].trim());
+		return ret;
+	}
+
+	private void benchSwap() throws Exception {
+		int maxPopulation = 0;
+		for (int i=0; i<populations.length; i++)
+			maxPopulation = Math.max(maxPopulation, populations[i]);
+		File population = generatePopulation(maxPopulation);
+
+		for (int i=0; i<classCounts.length; i++) {
+			for (int j=0; j<sizes.length; j++) {
+				File v1 = generateClasses(classCounts[i], sizes[j], 1);
+				File v2 = generateClasses(classCounts[i], sizes[j], 2);
+				Map<String, byte[]> classes1 = readClasses(v1);
+				Map<String, byte[]> classes2 = readClasses(v2);
+				for (int k=0; k<populations.length; k++)
+					benchSwap(classCounts[i], sizes[j], populations[k], v1, v2, classes1, classes2, population);
+			}
+		}
+	}
+
+	private void benchSwap(int classes, int size, int population, File v1, File v2,
+			Map<String, byte[]> classes1, Map<String, byte[]> classes2, File populationDir) throws Exception {
+		long bytes = 0;
+		for (byte [] classBytes : classes1.values())
+			bytes += classBytes.length;
+		String config = "swap " + transport + " classes=" + classes + " size=" + size + "KB population=" + population;
+
+		int port = "jdwp".equals(transport) ? freePort() : -1;
+		Target target = startTarget(classes, population, port, v1, populationDir);
+		try {
+			// over a kept connection, alternating between the two versions
+			HotSwapHelper hsh = new HotSwapHelper();
+			long start = System.nanoTime();
+			if (port >= 0)
+				hsh.connect(null, String.valueOf(port));
+			else
+				hsh.connectAgent(target.pid);
+			long attach = System.nanoTime() - start;
+			start = System.nanoTime();
+			int found = hsh.findLoaded(classes1.keySet()).size();
+			long lookup = System.nanoTime() - start;
+			if (found != classes)
+				throw new IllegalStateException(found + " of the " + classes + " classes loaded on the target");
+			long [] replace = new long[iterations];
+			for (int i=0; i<warmup+iterations; i++) {
+				start = System.nanoTime();
+				hsh.replace(i % 2 == 0 ? classes2 : classes1);
+				if (i >= warmup)
+					replace[i-warmup] = System.nanoTime() - start;
+			}
+			hsh.disconnect();
+			// the version running now is v1 if the count is even, v2 otherwise
+			boolean onV1 = (warmup + iterations) % 2 == 0;
+
+			long [] task = new long[iterations];
+			for (int i=0; i<warmup+iterations; i++) {
+				Hotswap hotswap = new Hotswap();
+				Project project = newProject();
+				hotswap.setProject(project);
+				if (port >= 0) {
+					hotswap.setPort(String.valueOf(port));
+				}
+				else {
+					hotswap.setTransport("agent");
+					hotswap.setPid(target.pid);
+				}
+				hotswap.addFileset(fileSet(project, onV1 ? v2 : v1, "**/*.class"));
+				onV1 = !onV1;
+				long time = execute(hotswap);
+				if (i >= warmup)
+					task[i-warmup] = time;
+			}
+
+			long median = median(replace);
+			System.out.println(config + " (" + bytes / classes + " bytes/class): attach " + millis(attach)
+				+ " ms, first lookup " + millis(lookup)
+				+ " ms, replace " + millis(median) + " ms (best " + millis(min(replace)) + "), "
+				+ Math.round(classes * 1e9 / median) + " classes/s, " + megabytesPerSecond(bytes, median)
+				+ " MB/s, task " + millis(median(task)) + " ms (best " + millis(min(task)) + ")");
+		} finally {
+			target.stop();
+		}
+	}
+
+	/**
+	 * Runs the task, again if the VM refused the connection: the JDWP agent takes
+	 * a moment to listen again after the previous debugger went away.
+	 * @return the time of the run which went through
+	 */
+	private static long execute(Hotswap hotswap) throws Exception {
+		for (int attempt=0; ; attempt++) {
+			long start = System.nanoTime();
+			try {
+				hotswap.execute();
+				return System.nanoTime() - start;
+			} catch (BuildException e) {
+				if (attempt >= 50 || !(rootCause(e) instanceof ConnectException))
+					throw e;
+				Thread.sleep(20);
+			}
+		}
+	}
+
+	private static Throwable rootCause(Throwable t) {
+		while (t.getCause() != null && t.getCause() != t)
+			t = t.getCause();
+		return t;
+	}
+
+	private void benchSearchReplace() throws Exception {
+		File dir = new File(work, "text-" + textMegabytes);
+		long bytes = generateText(dir);
+		long [] times = new long[iterations];
+		// an extra round when needed, so the files are left with the first string
+		int rounds = warmup + iterations + (warmup + iterations) % 2;
+		for (int i=0; i<rounds; i++) {
+			SearchReplace task = new SearchReplace();
+			Project project = newProject();
+			task.setProject(project);
+			// same length both ways, so the files keep their size
+			task.setFind(i % 2 == 0 ? FIND_A : FIND_B);
+			task.setReplace(i % 2 == 0 ? FIND_B : FIND_A);
+			task.addFileset(fileSet(project, dir, "*.txt"));
+			long start = System.nanoTime();
+			task.execute();
+			if (i >= warmup && i < warmup + iterations)
+				times[i-warmup] = System.nanoTime() - start;
+		}
+		long median = median(times);
+		System.out.println("searchreplace " + textMegabytes + " MB in " + TEXT_FILES + " files: " + millis(median)
+			+ " ms (best " + millis(min(times)) + "), " + megabytesPerSecond(bytes, median) + " MB/s");
+	}
+
+	/**
+	 * A running {@link BenchTarget}.
+	 */
+	private static class Target {
+		private Process process;
+		private String pid;
+
+		private void stop() throws InterruptedException {
+			try {
+				process.getOutputStream().close();
+			} catch (IOException e) {
+				// destroyed below anyway
+			}
+			process.destroy();
+			process.waitFor();
+		}
+	}
+
+	private Target startTarget(int classes, int population, int port, File v1, File populationDir) throws Exception {
+		File benchClasses = new File(BenchTarget.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		if (port >= 0)
+			command.add("-agentlib:jdwp=transport=dt_socket,server=y,suspend=n,address=" + port);
+		command.add("-cp");
+		command.add(benchClasses + File.pathSeparator + v1 + File.pathSeparator + populationDir);
+		command.add(BenchTarget.class.getName());
+		command.add(String.valueOf(classes));
+		command.add(String.valueOf(population));
+
+		ProcessBuilder builder = new ProcessBuilder(command);
+		// the JDWP agent complains when the VM is stopped
+		builder.redirectError(ProcessBuilder.Redirect.appendTo(new File(work, "target.log")));
+		Target target = new Target();
+		target.process = builder.start();
+		BufferedReader in = new BufferedReader(new InputStreamReader(target.process.getInputStream()));
+		String line;
+		while ((line = in.readLine()) != null && !line.startsWith("ready ")) {
+			// the JDWP agent's own messages
+		}
+		if (line == null) {
+			target.stop();
+			throw new IllegalStateException("the target VM did not start");
+		}
+		target.pid = line.substring(6).trim();
+		return target;
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Compiles a version of the synthetic classes, each made of a method returning
+	 * the version and of string constants bringing it to the size.
+	 * @return the directory of the class files, reused if already there
+	 */
+	private File generateClasses(int classes, int size, int version) throws IOException {
+		File dir = new File(work, "classes-" + classes + "-" + size + "k-v" + version);
+		File src = new File(work, "src-" + classes + "-" + size + "k-v" + version);
+		if (new File(dir, "done").exists())
+			return dir;
+		int padding = Math.max(0, size * 1024 - 400);
+		StringBuilder chunk = new StringBuilder();
+		for (int i=0; i<Math.min(padding, CHUNK); i++)
+			chunk.append((char)('a' + i % 26));
+		List<File> sources = new ArrayList<File>();
+		for (int i=0; i<classes; i++) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("package ").append(SWAPPED_PACKAGE).append(";\n");
+			sb.append("public class C").append(i).append(" {\n");
+			sb.append("\tpublic static int version() { return ").append(version).append("; }\n");
+			sb.append("\tpublic int value(int x) { return x * ").append(version).append(" + ").append(i).append("; }\n");
+			for (int left=padding, j=0; left > 0; left-=CHUNK, j++) {
+				sb.append("\tpublic static String pad").append(j).append("() { return \"")
+					.append(chunk, 0, Math.min(left, CHUNK)).append("\"; }\n");
+			}
+			sb.append("}\n");
+			sources.add(writeSource(src, SWAPPED_PACKAGE, "C" + i, sb.toString()));
+		}
+		compile(sources, dir);
+		return dir;
+	}
+
+	/**
+	 * Compiles the empty classes the target loads besides the swapped ones.
+	 */
+	private File generatePopulation(int population) throws IOException {
+		File dir = new File(work, "population-" + population);
+		File src = new File(work, "src-population-" + population);
+		if (new File(dir, "done").exists())
+			return dir;
+		List<File> sources = new ArrayList<File>();
+		for (int i=0; i<population; i++) {
+			sources.add(writeSource(src, POPULATION_PACKAGE, "P" + i,
+				"package " + POPULATION_PACKAGE + ";\npublic class P" + i + " { }\n"));
+		}
+		compile(sources, dir);
+		return dir;
+	}
+
+	private static File writeSource(File src, String packageName, String className, String source) throws IOException {
+		File file = new File(src, packageName.replace('.', '/') + "/" + className + ".java");
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), source.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	private static void compile(List<File> sources, File dir) throws IOException {
+		dir.mkdirs();
+		if (!sources.isEmpty()) {
+			JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+			if (javac == null)
+				throw new IllegalStateException("the benchmark needs a JDK, to compile the synthetic classes");
+			List<String> args = new ArrayList<String>(Arrays.asList("-nowarn", "-d", dir.getPath()));
+			for (File source : sources)
+				args.add(source.getPath());
+			if (javac.run(null, null, null, args.toArray(new String[args.size()])) != 0)
+				throw new IllegalStateException("cannot compile the synthetic classes");
+		}
+		new File(dir, "done").createNewFile();
+	}
+
+	private static Map<String, byte[]> readClasses(File dir) throws IOException {
+		Map<String, byte[]> ret = new LinkedHashMap<String, byte[]>();
+		File [] files = new File(dir, SWAPPED_PACKAGE.replace('.', '/')).listFiles();
+		Arrays.sort(files);
+		for (int i=0; i<files.length; i++) {
+			String name = files[i].getName();
+			ret.put(SWAPPED_PACKAGE + "." + name.substring(0, name.length() - 6), HotSwapHelper.loadClassFile(files[i]));
+		}
+		return ret;
+	}
+
+	/**
+	 * Writes text files with one of the searched strings every 1000 bytes or so.
+	 * @return the size of the files
+	 */
+	private long generateText(File dir) throws IOException {
+		long fileSize = textMegabytes * 1024L * 1024 / TEXT_FILES;
+		if (!new File(dir, "done").exists()) {
+			dir.mkdirs();
+			String line = "The quick brown fox jumps over the lazy dog, then swaps its classes. ";
+			for (int i=0; i<TEXT_FILES; i++) {
+				Writer out = Files.newBufferedWriter(new File(dir, "file" + i + ".txt").toPath(), StandardCharsets.UTF_8);
+				try {
+					long written = 0;
+					for (int j=0; written < fileSize; j++) {
+						String text = j % 14 == 13 ? FIND_A + "\n" : line;
+						out.write(text);
+						written += text.length();
+					}
+				} finally {
+					out.close();
+				}
+			}
+			new File(dir, "done").createNewFile();
+		}
+		long ret = 0;
+		for (int i=0; i<TEXT_FILES; i++)
+			ret += new File(dir, "file" + i + ".txt").length();
+		return ret;
+	}
+
+	private static Project newProject() {
+		Project project = new Project();
+		project.init();
+		return project;
+	}
+
+	private static FileSet fileSet(Project project, File dir, String includes) {
+		FileSet fs = new FileSet();
+		fs.setProject(project);
+		fs.setDir(dir);
+		fs.setIncludes(includes);
+		return fs;
+	}
+
+	private static long median(long [] times) {
+		long [] sorted = times.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+
+	private static long min(long [] times) {
+		long ret = Long.MAX_VALUE;
+		for (int i=0; i<times.length; i++)
+			ret = Math.min(ret, times[i]);
+		return ret;
+	}
+
+	private static String millis(long nanos) {
+		return String.valueOf(Math.round(nanos / 100000.0) / 10.0);
+	}
+
+	private static String megabytesPerSecond(long bytes, long nanos) {
+		return String.valueOf(Math.round(bytes * 1e9 / nanos / 1024 / 1024 * 10) / 10.0);
+	}
+}
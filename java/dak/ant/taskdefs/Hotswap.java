@@ -17,16 +17,52 @@
 
 package dak.ant.taskdefs;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.DirectoryScanner;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.taskdefs.compilers.CompilerAdapter;
 import org.apache.tools.ant.taskdefs.compilers.CompilerAdapterFactory;
 import org.apache.tools.ant.types.FileSet;
-import org.apache.tools.ant.types.Path;
 import org.apache.tools.ant.types.Reference;
+import org.apache.tools.ant.types.ZipFileSet;
 import org.apache.tools.ant.util.GlobPatternMapper;
 import org.apache.tools.ant.util.JavaEnvUtils;
 import org.apache.tools.ant.util.SourceFileScanner;
@@ -34,7 +70,11 @@ import org.apache.tools.ant.util.facade.FacadeTaskHelper;
 
 import org.apache.tools.ant.taskdefs.MatchingTask;
 
+import dak.debug.ClassFile;
+import dak.debug.DigestCache;
+import dak.debug.HotSwapException;
 import dak.debug.HotSwapHelper;
+import dak.debug.SwapStats;
 
 /**
  * This task replaces class on a running JVM. This task can take the following
@@ -45,9 +85,50 @@ import dak.debug.HotSwapHelper;
  * <li/>host
  * <li/>port
  * <li/>name
+ * <li/>digestcache
+ * <li/>ignoredebuginfo
+ * <li/>deferred
+ * <li/>daemon
+ * <li/>transport
+ * <li/>pid
+ * <li/>classloader
+ * <li/>watch
+ * <li/>debounce
+ * <li/>threads
+ * <li/>readthreads
+ * <li/>preflight
+ * <li/>maxbatchbytes
+ * <li/>maxbatchclasses
+ * <li/>report
+ * <li/>history
+ * <li/>historysize
+ * <li/>rollback
+ * <li/>stopagent
  * </ul>
  * Of these arguments, the <b>host</b> and <b>port</b> are required. Or,
  * the <b>name</b> can be used instead to indicate a shared mem connection.
+ * Or, the <b>daemon</b> port of a running {@link dak.debug.HotSwapDaemon},
+ * which saves attaching to the VM on every run.
+ * <p/>
+ * With <b>transport</b>="agent", the VM doesn't need to run with the JDWP agent at all:
+ * a {@link dak.debug.HotSwapAgent} is loaded in the local VM given by <b>pid</b> (its
+ * process id, or a part of its main class name as listed by jps) through the Attach
+ * API, and replaces the classes with java.lang.instrument. The agent stays in the VM
+ * for the next runs, listening on a local port which only lets in the clients given
+ * a token through the Attach API; with <b>stopagent</b>, it is stopped at the end of
+ * the run instead. Java 21 and later warn about agents loaded this way, unless
+ * the VM runs with <code>-XX:+EnableDynamicAgentLoading</code>.
+ * <p/>
+ * When a class is loaded by several class loaders, as in a container running several
+ * applications, every copy of it is replaced. <b>classloader</b> restricts the swap to
+ * the copies of some loaders, by loader class (<code>class:...</code>), loader name
+ * (<code>name:...</code>) or class path (<code>codesource:webapps/shop/</code>). The
+ * classes of the other loaders are then neither looked up nor replaced.
+ * <p/>
+ * The classes can be replaced on several VMs at once (a cluster of identical VMs),
+ * with nested <b>target</b> elements taking the same host, port, name and daemon
+ * attributes. The classes are read once, then each VM is attached to and updated
+ * concurrently, on up to <b>threads</b> threads, and the outcome is logged per VM.
  * <p/>
  * See the JPDA documentation for details on the JVM runtime options.
  * <a href="http://java.sun.com/j2se/1.4.2/docs/guide/jpda/conninv.html#Invocation">
@@ -70,16 +151,74 @@ import dak.debug.HotSwapHelper;
  *	</hotswap>
  * </code>
  * <br/>
+ * All the classes matched by the filesets are sent to the VM in a single redefinition
+ * request. If the VM rejects it, the classes are retried group by group so the offending
+ * ones can be reported. A group is a top level class with its nested and anonymous
+ * classes (<code>Foo</code>, <code>Foo$Inner</code>, <code>Foo$1</code>), which are
+ * always replaced together so a class is never left half updated.
+ * <p/>
+ * For very large swaps, the classes are read and sent in batches of at most
+ * <b>maxbatchbytes</b> bytes (32 MB by default) and <b>maxbatchclasses</b> classes
+ * (no limit by default), in the order of the class names, so that neither this VM
+ * nor the target has to hold all the classes at once. A group is never split across
+ * batches. The size and time of each batch is logged in verbose mode.
+ * <p/>
+ * The time spent in each phase (scan, attach, lookup, read, redefine) is logged in
+ * verbose mode. With <b>report</b>, it is also written to a JSON file along with the
+ * number of classes swapped, skipped, not loaded or failed and the bytes sent, for
+ * the whole run and for each VM, so that swap times can be tracked from build to
+ * build. Requests the VM rejects are counted apart, as their classes are sent again.
+ * <p/>
+ * With <b>preflight</b> (the default), each class is first compared with the version
+ * running on the VM, and the classes which add or remove fields or methods, or change
+ * their supertypes or modifiers, are reported as failed without being sent, so the
+ * compatible ones still go out in one batch.
+ * <p/>
+ * The <b>digestcache</b> file records a digest of the classes each VM accepted, so
+ * that the classes which did not change since the previous run on any of the VMs
+ * that loaded them are skipped. With
+ * <b>ignoredebuginfo</b>, changes limited to the debug attributes don't count.
+ * <p/>
+ * Classes which aren't loaded on the VM are not read at all, the others are read in
+ * parallel on <b>readthreads</b> threads. With <b>deferred</b>, the classes not loaded
+ * are replaced when the VM loads them, as long as the connection is open: a daemon
+ * or the agent keeps them after the run, a direct JDWP connection only with <b>watch</b>.
+ * <p/>
+ * With <b>watch</b>, the task keeps running after the first swap: it watches the fileset
+ * directories and, each time a compilation has rewritten some classes and the directories
+ * have been quiet for <b>debounce</b> milliseconds, it swaps only those classes.
+ * <p/>
  * The preferred way to build the <fileset> would be based on modification time.
  * At present, the tstamp isn't fine grained enough. The <outofdate> task from ant-contrib
  * provides absolute paths to all of the class files, which isn't compatible with the
  * way <hotswap> needs the paths. 
+ * <p/>
+ * Classes can also be taken straight from a jar with a nested <b>zipfileset</b>
+ * (<code>&lt;zipfileset src="dist/app.jar" includes="com/acme/**"/&gt;</code>): the
+ * class names come from the entry names, and the entries are read without extracting
+ * the archive. Such classes are neither watched nor deferred.
+ * <p/>
+ * With a <b>history</b> directory, the versions of the classes running before each
+ * swap are kept there, one subdirectory per VM, for the last <b>historysize</b> swaps
+ * (5 by default). They are the versions last sent by a previous run or, the first
+ * time a class is swapped, the bytes the VM runs as given by the agent transport;
+ * through JDWP the VM can't give them, and those classes can't be rolled back. A
+ * <b>rollback</b> run then sends the versions replaced by the latest swap back to each
+ * VM in a single batch, instead of swapping the filesets; it needs no fileset. Without
+ * a history directory, a rollback goes to the daemon or the agent, which keep their
+ * own history of the swaps made through them.
  *
  * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
  */
 
 public class Hotswap extends MatchingTask {
 
+    // class groups read ahead of the next one to send to the VMs
+    private static final int READ_QUEUE_SIZE = 256;
+
+    static final String JDWP = "jdwp";
+    static final String AGENT = "agent";
+
     private static final String FAIL_MSG
         = "Hotswap failed; changes to class(es) might not be compatible with replacement on your VM.";
 
@@ -89,9 +228,48 @@ public class Hotswap extends MatchingTask {
 	protected String host;
 	protected String port;
 	protected String name;
+	protected int daemonPort = -1;
+	protected String transport = JDWP;
+	protected String pid;
+	protected String classLoader;
     protected Vector filesets = new Vector();
+    protected Vector zipfilesets = new Vector();
+    protected Vector targets = new Vector();
+	private int threads = 0;
+	private int readThreads = 0;
 
-	private boolean useSocket = true;
+	protected File digestCacheFile;
+	// timings and counters of the current run
+	protected SwapStats stats;
+	private boolean ignoreDebugInfo = false;
+	private boolean deferred = false;
+	private boolean watch = false;
+	private long debounce = 300;
+	private boolean preflight = true;
+	private long maxBatchBytes = 32*1024*1024;
+	private int maxBatchClasses = 0;
+	private File historyDir;
+	private int historySize = 5;
+	private boolean rollback = false;
+	private boolean stopAgent = false;
+
+	// classes collected for the current run, swapped in batches
+	private List<HotswapTarget> vms;
+	private ExecutorService executor;
+	private ForkJoinPool readPool;
+	private Map<String, ClassLocation> classFiles;
+	private List<ZipFile> archives = new ArrayList<ZipFile>();
+	private Map<String, byte[]> classes;
+	private Map<String, String> digests;
+	private DigestCache digestCache;
+	private int unchanged;
+	private int notLoaded;
+	private long batchBytes;
+	private int batchCount;
+	private int swappedClasses;
+	// the number of classes sent, per group
+	private Map<String, Integer> swappedGroups;
+	private File reportFile;
 
     /**
      * Hotswap task for compilation of Java files.
@@ -162,6 +340,45 @@ public class Hotswap extends MatchingTask {
         this.name = name;
     }
 
+    /**
+     * Sets the local port of a running {@link dak.debug.HotSwapDaemon}. The classes
+     * are then handed to the daemon, which stays attached to the VM, so host, port
+     * and name are not needed. The daemon lets in the clients with the token it wrote
+     * for its user, so the task has to run as the user running the daemon.
+     * @param daemonPort the port the daemon listens on
+     */
+    public void setDaemon(int daemonPort) {
+        this.daemonPort = daemonPort;
+    }
+
+    /**
+     * Sets how the classes are sent to the VM: "jdwp" (the default) to attach with
+     * the debugger interface, or "agent" to load a {@link dak.debug.HotSwapAgent} in
+     * a local VM, which then needs no debugger agent.
+     * @param transport "jdwp" or "agent"
+     */
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Sets the local VM to load the agent in, with the "agent" transport.
+     * @param pid the process id, or a part of the main class or jar name of the VM
+     */
+    public void setPid(String pid) {
+        this.pid = pid;
+    }
+
+    /**
+     * Restricts the classes replaced to those of some class loaders, given as a comma
+     * separated list of <code>class:</code>loader class, <code>name:</code>loader name
+     * or <code>codesource:</code>part of the class path (see {@link dak.debug.ClassLoaderFilter}).
+     * @param classLoader the class loader filter
+     */
+    public void setClassLoader(String classLoader) {
+        this.classLoader = classLoader;
+    }
+
     /**
      * If false, note errors but continue.
      *
@@ -171,6 +388,150 @@ public class Hotswap extends MatchingTask {
          this.failonerror = failonerror;
      }
 
+    /**
+     * Sets the file remembering the digests of the classes already swapped.
+     * Classes whose bytes match their recorded digest are not sent again.
+     * @param digestCacheFile the digest cache file, created if needed
+     */
+    public void setDigestCache(File digestCacheFile) {
+        this.digestCacheFile = digestCacheFile;
+    }
+
+    /**
+     * If true, classes which only differ from their recorded digest by their
+     * debug attributes (line numbers, local variables, source file) are
+     * considered unchanged and are not swapped. Requires a digest cache.
+     * @param ignoreDebugInfo true to leave debug attributes out of the digest
+     */
+    public void setIgnoreDebugInfo(boolean ignoreDebugInfo) {
+        this.ignoreDebugInfo = ignoreDebugInfo;
+    }
+
+    /**
+     * If true (the default), the fields, methods and supertypes of each class are
+     * compared with those of the running class before anything is sent, and the
+     * classes the VM would reject are reported without being sent.
+     * @param preflight false to let the VM check all the classes
+     */
+    public void setPreflight(boolean preflight) {
+        this.preflight = preflight;
+    }
+
+    /**
+     * Sets the most class file bytes sent to the VM in one redefinition request.
+     * A group of classes bigger than this is sent on its own.
+     * @param maxBatchBytes the size of a batch, 0 for no limit; defaults to 32 MB
+     */
+    public void setMaxBatchBytes(long maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * Sets the most classes sent to the VM in one redefinition request.
+     * @param maxBatchClasses the number of classes in a batch, 0 for no limit (the default)
+     */
+    public void setMaxBatchClasses(int maxBatchClasses) {
+        this.maxBatchClasses = maxBatchClasses;
+    }
+
+    /**
+     * Sets the file the timings and counters of the run are written to, as JSON.
+     * @param reportFile the report file, overwritten on each run
+     */
+    public void setReport(File reportFile) {
+        this.reportFile = reportFile;
+    }
+
+    /**
+     * Sets the directory the versions replaced by each swap are kept in, so that
+     * the swap can be rolled back.
+     * @param historyDir the history directory, shared by the runs
+     */
+    public void setHistory(File historyDir) {
+        this.historyDir = historyDir;
+    }
+
+    /**
+     * Sets how many swaps are kept in the history, and can be rolled back.
+     * @param historySize the number of swaps kept; defaults to 5
+     */
+    public void setHistorySize(int historySize) {
+        this.historySize = historySize;
+    }
+
+    /**
+     * If true, the classes replaced by the latest swap are sent back to the VMs,
+     * as they were before it, instead of the classes of the filesets.
+     * @param rollback true to undo the latest swap
+     */
+    public void setRollback(boolean rollback) {
+        this.rollback = rollback;
+    }
+
+    /**
+     * If true, the agent loaded in the VMs with the "agent" transport is stopped at
+     * the end of the run, rather than left there for the next runs.
+     * @param stopAgent true to stop the agent
+     */
+    public void setStopAgent(boolean stopAgent) {
+        this.stopAgent = stopAgent;
+    }
+
+    /**
+     * If true, the classes which are not loaded yet on the VM are replaced
+     * as soon as they get loaded, for as long as the connection lasts.
+     * @param deferred true to replace classes when they get loaded
+     */
+    public void setDeferred(boolean deferred) {
+        this.deferred = deferred;
+    }
+
+    /**
+     * If true, the task doesn't end after swapping the classes: it keeps watching
+     * the fileset directories, and swaps the classes again as they get rewritten.
+     * @param watch true to keep swapping the classes as they change
+     */
+    public void setWatch(boolean watch) {
+        this.watch = watch;
+    }
+
+    /**
+     * Sets how long the watched directories must stay quiet before the changed
+     * classes are swapped, so a whole compilation goes out in one batch.
+     * @param debounce the delay, in milliseconds; defaults to 300
+     */
+    public void setDebounce(long debounce) {
+        this.debounce = debounce;
+    }
+
+    /**
+     * Sets how many VMs are worked on at the same time, when there are several
+     * targets. Defaults to the number of targets, up to twice the number of cores.
+     * @param threads the maximum number of VMs worked on concurrently
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Sets how many class files are read at the same time.
+     * Defaults to the number of cores.
+     * @param readThreads the number of threads reading the class files
+     */
+    public void setReadThreads(int readThreads) {
+        this.readThreads = readThreads;
+    }
+
+	/**
+	 * Adds a VM to replace the classes on, besides the one given by the attributes.
+	 * @return the target to configure
+	 */
+	public HotswapTarget createTarget() {
+		HotswapTarget target = new HotswapTarget();
+		targets.addElement(target);
+		return target;
+	}
+
 	/**
 	 * Adds a set of files to be deployed.
 	 * @param set the set of files to be deployed
@@ -179,6 +540,14 @@ public class Hotswap extends MatchingTask {
 		filesets.addElement(set);
 	}
 
+	/**
+	 * Adds the classes of a jar or zip file to be deployed, straight from the archive.
+	 * @param set the archive entries to be deployed
+	 */
+	public void addZipfileset(ZipFileSet set) {
+		zipfilesets.addElement(set);
+	}
+
     /**
      * Executes the task.
      * @exception BuildException if an error occurs
@@ -186,46 +555,592 @@ public class Hotswap extends MatchingTask {
     public void execute() throws BuildException {
         checkParameters();
 
+		vms = new ArrayList<HotswapTarget>();
+		if ((port != null) || (name != null) || (daemonPort >= 0) || (pid != null))
+			vms.add(new HotswapTarget(host, port, name, daemonPort, transport, pid));
+		for (int i = 0; i < targets.size(); i++)
+			vms.add((HotswapTarget) targets.elementAt(i));
+		for (HotswapTarget vm : vms) {
+			vm.error = null;
+			vm.stats = null;
+		}
+		// the VMs dropped along the way are still reported
+		List<HotswapTarget> allVms = new ArrayList<HotswapTarget>(vms);
+		stats = new SwapStats();
+		long start = System.nanoTime();
+		String error = null;
+		if (vms.size() > 1)
+			executor = newExecutor(threads > 0 ? threads : Math.min(vms.size(), 2*Runtime.getRuntime().availableProcessors()));
+
 		try {
-			HotSwapHelper hsh = new HotSwapHelper();
-			// attach
-			if (useSocket) {
-				hsh.connect(host, port);
-			}
-			else {
-				hsh.connect(name);
-			}
+			// collect the classes, then replace them on the target VMs in one go
+			if (digestCacheFile != null && !rollback)
+				digestCache = new DigestCache(digestCacheFile);
+			startBatch();
+			long phase = System.nanoTime();
+			if (!rollback)
+				collectClasses();
+			stats.time("scan", phase);
+			stats.count("collected", classFiles.size());
 
-			// load classes and replace them on target VM
-        	for (int i = 0; i < filesets.size(); i++) {
-            	FileSet fs = (FileSet) filesets.elementAt(i);
-				try {
-					DirectoryScanner ds = fs.getDirectoryScanner(getProject());
-					String[] files = ds.getIncludedFiles();
-					String[] dirs = ds.getIncludedDirectories();
-					hotswapFiles(hsh, fs.getDir(getProject()), files, dirs);
-				} catch (BuildException be) {
-					// directory doesn't exist or is not readable
-					if (failonerror) {
-						throw be;
-					} else {
-						log(FAIL_MSG);
-						log(be.getMessage());
-					}
+			// attach
+			phase = System.nanoTime();
+			runOnTargets(new TargetJob() {
+				public void run(HotswapTarget vm) throws Exception {
+					vm.connect(preflight, transport, classLoader, historyDir, historySize, stopAgent);
 				}
+			});
+			stats.time("attach", phase);
+			checkErrors("attach", failonerror);
+			if (vms.isEmpty())
+				return;
+
+			if (rollback) {
+				rollback();
+				return;
 			}
+			swapBatch(failonerror);
 
-			hsh.disconnect();
+			if (watch)
+				watch();
+		} catch (BuildException ex) {
+			error = ex.getMessage();
+			throw ex;
 		} catch (Exception ex) {
+			error = ex.getMessage();
 			if (failonerror) {
 				throw new BuildException(ex);
 			} else {
 				log(FAIL_MSG);
 				log(ex.getMessage());
 			}
+		} finally {
+			stats.time("total", start);
+			log("timings: " + stats, Project.MSG_VERBOSE);
+			for (HotswapTarget vm : allVms) {
+				if (vm.stats != null && allVms.size() > 1)
+					log(vm + ": " + vm.stats, Project.MSG_VERBOSE);
+			}
+			if (reportFile != null)
+				writeReport(allVms, error);
+			disconnect();
 		}
     }
 
+	/**
+	 * Writes the timings and counters of the run, and of each VM, to the report file
+	 * as a JSON object. In watch mode, the report is rewritten after each swap, with
+	 * the totals so far.
+	 */
+	private void writeReport(List<HotswapTarget> allVms, String error) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"time\": ");
+		SwapStats.quote(sb, Instant.now().toString());
+		sb.append(",\n \"error\": ");
+		SwapStats.quote(sb, error);
+		sb.append(",\n \"stats\": ");
+		stats.toJson(sb);
+		sb.append(",\n \"targets\": [");
+		String sep = "\n  ";
+		for (HotswapTarget vm : allVms) {
+			sb.append(sep).append("{\"target\": ");
+			SwapStats.quote(sb, vm.toString());
+			sb.append(", \"error\": ");
+			SwapStats.quote(sb, vm.error == null ? null : String.valueOf(vm.error.getMessage()));
+			sb.append(", \"stats\": ");
+			if (vm.stats == null)
+				sb.append("null");
+			else
+				vm.stats.toJson(sb);
+			sb.append('}');
+			sep = ",\n  ";
+		}
+		sb.append("]}\n");
+		try {
+			Files.write(reportFile.toPath(), sb.toString().getBytes("UTF-8"));
+		} catch (IOException ex) {
+			log("cannot write the report " + reportFile + ": " + ex, Project.MSG_WARN);
+		}
+	}
+
+	/**
+	 * Collects the classes to replace from the filesets and zipfilesets.
+	 * @exception Exception if a class can't be collected
+	 */
+	protected void collectClasses() throws Exception {
+		for (int i = 0; i < filesets.size(); i++) {
+			FileSet fs = (FileSet) filesets.elementAt(i);
+			try {
+				DirectoryScanner ds = fs.getDirectoryScanner(getProject());
+				String[] files = ds.getIncludedFiles();
+				String[] dirs = ds.getIncludedDirectories();
+				hotswapFiles(fs.getDir(getProject()), files, dirs);
+			} catch (BuildException be) {
+				// directory doesn't exist or is not readable
+				if (failonerror) {
+					throw be;
+				} else {
+					log(FAIL_MSG);
+					log(be.getMessage());
+				}
+			}
+		}
+		for (int i = 0; i < zipfilesets.size(); i++) {
+			ZipFileSet zfs = (ZipFileSet) zipfilesets.elementAt(i);
+			try {
+				DirectoryScanner ds = zfs.getDirectoryScanner(getProject());
+				File src = zfs.getSrc(getProject());
+				if (src == null)
+					hotswapFiles(zfs.getDir(getProject()), ds.getIncludedFiles(), ds.getIncludedDirectories());
+				else
+					hotswapEntries(src, ds.getIncludedFiles());
+			} catch (BuildException be) {
+				// archive doesn't exist or is not readable
+				if (failonerror) {
+					throw be;
+				} else {
+					log(FAIL_MSG);
+					log(be.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a class which is already in memory to the classes to replace.
+	 * @param className the name of the class
+	 * @param classBytes the class file bytes
+	 */
+	protected void collectClass(String className, byte [] classBytes) {
+		classFiles.put(className, new ClassLocation(classBytes));
+	}
+
+	private void disconnect() {
+		for (HotswapTarget vm : vms) {
+			try {
+				vm.disconnect();
+			} catch (Exception ex) {
+				log("disconnecting from " + vm + " failed: " + ex, Project.MSG_VERBOSE);
+			}
+		}
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+		if (readPool != null) {
+			readPool.shutdown();
+			readPool = null;
+		}
+		for (ZipFile zip : archives) {
+			try {
+				zip.close();
+			} catch (IOException ex) {
+				// only read from
+			}
+		}
+		archives.clear();
+	}
+
+	private void startBatch() {
+		classFiles = new LinkedHashMap<String, ClassLocation>();
+		classes = new LinkedHashMap<String, byte[]>();
+		digests = new HashMap<String, String>();
+		unchanged = 0;
+		notLoaded = 0;
+		batchBytes = 0;
+		batchCount = 0;
+		swappedClasses = 0;
+		swappedGroups = new HashMap<String, Integer>();
+	}
+
+	/**
+	 * Replaces the collected classes on the target VMs. The classes are read and
+	 * sent in batches of at most <b>maxbatchbytes</b> bytes and <b>maxbatchclasses</b>
+	 * classes, so only one batch is held in memory at a time.
+	 * @param fail true to fail if some classes could not be replaced
+	 */
+	private void swapBatch(boolean fail) throws Exception {
+		// find out which classes each VM has loaded
+		long phase = System.nanoTime();
+		runOnTargets(new TargetJob() {
+			public void run(HotswapTarget vm) throws Exception {
+				vm.loaded.clear();
+				vm.failures.clear();
+				vm.swapped = 0;
+				vm.loaded.addAll(vm.hsh.findLoaded(classFiles.keySet()));
+				if (deferred) {
+					for (Map.Entry<String, ClassLocation> entry : classFiles.entrySet()) {
+						if (!vm.loaded.contains(entry.getKey()) && entry.getValue().file != null)
+							vm.hsh.replaceOnLoad(entry.getKey(), entry.getValue().file);
+					}
+				}
+			}
+		});
+		stats.time("lookup", phase);
+		checkErrors("lookup", fail);
+
+		// read the classes once, whatever the number of VMs
+		Set<String> anyLoaded = new HashSet<String>();
+		for (HotswapTarget vm : vms)
+			anyLoaded.addAll(vm.loaded);
+		readClasses(anyLoaded);
+		sendBatch();
+
+		if (notLoaded > 0)
+			log((deferred ? "deferred " : "skipped ") + notLoaded + " classes not loaded on the VM");
+		if (unchanged > 0)
+			log("skipped " + unchanged + " unchanged classes");
+		stats.count("notLoaded", notLoaded);
+		stats.count("unchanged", unchanged);
+		if (swappedClasses == 0)
+			return;
+		log("sent " + swappedClasses + " classes in " + swappedGroups.size() + " groups"
+			+ (batchCount > 1 ? ", " + batchCount + " batches" : ""));
+
+		// the groups which failed on at least one VM
+		Set<String> failed = new HashSet<String>();
+		for (HotswapTarget vm : vms) {
+			if (vm.error != null) {
+				for (String className : vm.loaded)
+					failed.add(HotSwapHelper.groupOf(className));
+				continue;
+			}
+			updateDigests(vm);
+			if (!vm.failures.isEmpty()) {
+				vm.error = new HotSwapException(vm.failures);
+				failed.addAll(vm.failures.keySet());
+			}
+		}
+		if (digestCache != null)
+			digestCache.save();
+
+		int failedClasses = 0;
+		for (String group : failed) {
+			Integer size = swappedGroups.get(group);
+			if (size != null)
+				failedClasses += size.intValue();
+		}
+		stats.count("swapped", swappedClasses - failedClasses);
+		stats.count("failed", failedClasses);
+		if (vms.size() > 1) {
+			for (HotswapTarget vm : vms) {
+				if (vm.error == null)
+					log(vm + ": hotswapped " + vm.swapped + " loaded classes");
+			}
+		}
+		checkErrors("hotswap", fail);
+	}
+
+	/**
+	 * Sends the versions replaced by the latest swap back to each VM. The digest
+	 * cache, which now describes versions the VMs no longer run, is left alone: the
+	 * next swap has to send the classes anyway.
+	 */
+	private void rollback() throws Exception {
+		long start = System.nanoTime();
+		runOnTargets(new TargetJob() {
+			public void run(HotswapTarget vm) throws Exception {
+				vm.swapped = vm.hsh.rollback();
+			}
+		});
+		stats.time("rollback", start);
+		for (HotswapTarget vm : vms) {
+			String prefix = vms.size() > 1 ? vm + ": " : "";
+			if (vm.stats != null) {
+				for (String warning : vm.stats.takeWarnings())
+					log(prefix + warning, Project.MSG_WARN);
+			}
+			if (vm.error != null)
+				continue;
+			if (vm.swapped == 0)
+				log(prefix + "nothing to roll back", Project.MSG_WARN);
+			else
+				log(prefix + "rolled back " + vm.swapped + " classes");
+			stats.count("rolledBack", vm.swapped);
+		}
+		checkErrors("rollback", failonerror);
+	}
+
+	/**
+	 * Sends the classes read so far to the VMs, as one redefinition request per VM.
+	 * The classes a VM rejects are kept with the VM, which goes on with the next
+	 * batches; a VM which fails otherwise is left out of the next batches.
+	 */
+	private void sendBatch() throws Exception {
+		if (classes.isEmpty())
+			return;
+		Map<String, List<String>> groups = new LinkedHashMap<String, List<String>>();
+		for (String className : classes.keySet()) {
+			String group = HotSwapHelper.groupOf(className);
+			List<String> members = groups.get(group);
+			if (members == null) {
+				members = new ArrayList<String>();
+				groups.put(group, members);
+			}
+			members.add(className);
+		}
+		if (verbose) {
+			for (Map.Entry<String, List<String>> group : groups.entrySet())
+				log("hotswapping " + group.getKey() + (group.getValue().size() > 1 ? " " + group.getValue() : ""));
+		}
+
+		long start = System.nanoTime();
+		runOnTargets(new TargetJob() {
+			public void run(HotswapTarget vm) throws Exception {
+				Map<String, byte[]> loadedClasses = new LinkedHashMap<String, byte[]>();
+				for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+					if (vm.loaded.contains(entry.getKey()))
+						loadedClasses.put(entry.getKey(), entry.getValue());
+				}
+				try {
+					vm.hsh.replace(loadedClasses);
+				} catch (HotSwapException ex) {
+					vm.failures.putAll(ex.getFailures());
+				}
+				vm.swapped += loadedClasses.size();
+			}
+		});
+		stats.time("redefine", start);
+		batchCount++;
+		log("batch " + batchCount + ": " + classes.size() + " classes in " + groups.size() + " groups, "
+			+ batchBytes / 1024 + " KB, sent in " + (System.nanoTime() - start) / 1000000 + " ms",
+			Project.MSG_VERBOSE);
+		for (HotswapTarget vm : vms) {
+			if (vm.stats != null) {
+				for (String warning : vm.stats.takeWarnings())
+					log((vms.size() > 1 ? vm + ": " : "") + warning, Project.MSG_WARN);
+			}
+		}
+
+		stats.count("batches", 1);
+		stats.count("bytes", batchBytes);
+		swappedClasses += classes.size();
+		for (Map.Entry<String, List<String>> group : groups.entrySet())
+			swappedGroups.put(group.getKey(), Integer.valueOf(group.getValue().size()));
+		classes.clear();
+		batchBytes = 0;
+	}
+
+	/**
+	 * Work done on every VM, concurrently when there are several of them.
+	 */
+	private interface TargetJob {
+		void run(HotswapTarget vm) throws Exception;
+	}
+
+	/**
+	 * Runs the job on every VM still connected. A failure is kept in the
+	 * target, so that one VM going wrong doesn't stop the others.
+	 */
+	private void runOnTargets(final TargetJob job) throws InterruptedException {
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (final HotswapTarget vm : vms) {
+			if (vm.error != null)
+				continue;
+			Runnable task = new Runnable() {
+				public void run() {
+					try {
+						job.run(vm);
+					} catch (Exception ex) {
+						vm.error = ex;
+					}
+				}
+			};
+			if (executor == null)
+				task.run();
+			else
+				futures.add(executor.submit(task));
+		}
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException ex) {
+				throw new BuildException(ex.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Reports what went wrong on the VMs. When not failing, a VM which could not
+	 * be reached is dropped from the rest of the run, while one which rejected some
+	 * classes is kept for the next batch.
+	 * @param fail true to fail if something went wrong on one of the VMs
+	 */
+	private void checkErrors(String phase, boolean fail) throws Exception {
+		int errors = 0;
+		Exception first = null;
+		for (HotswapTarget vm : vms) {
+			if (vm.error != null) {
+				if (vms.size() > 1)
+					log(vm + ": " + phase + " failed: " + vm.error.getMessage(), Project.MSG_ERR);
+				if (first == null)
+					first = vm.error;
+				errors++;
+			}
+		}
+		if (errors == 0)
+			return;
+		if (fail) {
+			if (vms.size() == 1)
+				throw first;
+			throw new BuildException(phase + " failed on " + errors + " of " + vms.size() + " VMs");
+		}
+		log(FAIL_MSG);
+		if (vms.size() == 1)
+			log(first.getMessage());
+
+		Iterator<HotswapTarget> iter = vms.iterator();
+		while (iter.hasNext()) {
+			HotswapTarget vm = iter.next();
+			if (vm.error instanceof HotSwapException) {
+				vm.error = null;
+			}
+			else if (vm.error != null) {
+				try {
+					vm.disconnect();
+				} catch (Exception ex) {
+					// dropped anyway
+				}
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Creates the pool the VMs are worked on with, using virtual threads when the
+	 * running Java has them, as the work is mostly waiting on the VMs.
+	 */
+	private static ExecutorService newExecutor(int threads) {
+		ThreadFactory factory = Executors.defaultThreadFactory();
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		} catch (Exception ex) {
+			// platform threads then
+		}
+		return Executors.newFixedThreadPool(threads, factory);
+	}
+
+	/**
+	 * Watches the fileset directories, and swaps the classes as they are written.
+	 * A burst of writes (a compilation) is collected until the directories have been
+	 * quiet for the debounce delay, then swapped as one batch. This only returns when
+	 * the thread is interrupted.
+	 */
+	private void watch() throws Exception {
+		WatchService watcher = FileSystems.getDefault().newWatchService();
+		try {
+			Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+			for (int i = 0; i < filesets.size(); i++) {
+				FileSet fs = (FileSet) filesets.elementAt(i);
+				register(watcher, keys, fs.getDir(getProject()).toPath());
+			}
+			log("watching " + keys.size() + " directories for changes");
+			FileSetMatcher [] matchers = new FileSetMatcher[filesets.size()];
+			for (int i = 0; i < filesets.size(); i++)
+				matchers[i] = new FileSetMatcher((FileSet) filesets.elementAt(i), getProject());
+
+			while (true) {
+				Set<Path> changed = new LinkedHashSet<Path>();
+				WatchKey key = watcher.take();
+				while (key != null) {
+					Path dir = keys.get(key);
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null)
+							continue;
+						Path path = dir.resolve((Path) event.context());
+						if (Files.isDirectory(path)) {
+							// a new package, may already hold classes
+							register(watcher, keys, path);
+							addClassFiles(changed, path);
+						}
+						else if (path.toString().endsWith(".class")) {
+							changed.add(path);
+						}
+					}
+					if (!key.reset())
+						keys.remove(key);
+					key = watcher.poll(debounce, TimeUnit.MILLISECONDS);
+				}
+
+				startBatch();
+				for (Path path : changed) {
+					for (int i = 0; i < filesets.size(); i++) {
+						FileSet fs = (FileSet) filesets.elementAt(i);
+						File d = fs.getDir(getProject());
+						if (path.startsWith(d.toPath()) && Files.isRegularFile(path)) {
+							String file = d.toPath().relativize(path).toString();
+							if (matchers[i].matches(file)) {
+								processHotswap(d, file);
+								break;
+							}
+						}
+					}
+				}
+				swapBatch(false);
+				if (reportFile != null)
+					writeReport(vms, null);
+				if (vms.isEmpty()) {
+					// all of them failed, and were dropped
+					if (failonerror)
+						throw new BuildException("no VM left to swap the classes to");
+					log("no VM left to swap the classes to, stopped watching");
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			// stop watching
+		} finally {
+			watcher.close();
+		}
+	}
+
+	private void register(final WatchService watcher, final Map<WatchKey, Path> keys, Path root) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				keys.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private void addClassFiles(final Set<Path> changed, Path root) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (file.toString().endsWith(".class"))
+					changed.add(file);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Matches the files of a fileset as its scanner does, with its patterns, default
+	 * excludes, case sensitivity and selectors, but one file at a time, without
+	 * scanning the directory.
+	 */
+	private static class FileSetMatcher extends DirectoryScanner {
+		FileSetMatcher(FileSet fs, Project project) {
+			fs.setupDirectoryScanner(this, project);
+			// as when scanning, no includes include everything
+			if (includes == null)
+				setIncludes(new String[] { "**" });
+		}
+
+		/**
+		 * As when scanning, a file is also included when one of its parent
+		 * directories is, the whole directory being swapped then.
+		 * @param file the path of the file, relative to the fileset directory
+		 */
+		boolean matches(String file) {
+			for (String path = file; path != null; path = new File(path).getParent()) {
+				if (isIncluded(path) && !isExcluded(path) && isSelected(path, new File(getBasedir(), path)))
+					return true;
+			}
+			return false;
+		}
+	}
+
     /**
      * Check that all required attributes have been set and nothing
      * silly has been entered.
@@ -234,35 +1149,67 @@ public class Hotswap extends MatchingTask {
      * @exception BuildException if an error occurs
      */
     protected void checkParameters() throws BuildException {
-        if (filesets.size() == 0) {
-            throw new BuildException("At least one of the file or dir "
-                                     + "attributes, or a fileset element, "
-                                     + "must be set.");
+        if (rollback) {
+            if (watch) {
+                throw new BuildException("rollback can't be combined with watch");
+            }
+        } else {
+            checkSources();
+        }
+
+        if (watch && filesets.size() == 0) {
+            throw new BuildException("watch needs a fileset to watch");
+        }
+
+        if (ignoreDebugInfo && digestCacheFile == null) {
+            throw new BuildException("ignoredebuginfo requires a digestcache");
         }
 
-        if ((port == null) && (name == null)) {
+        if ((port == null) && (name == null) && (daemonPort < 0) && (pid == null) && targets.isEmpty()) {
             throw new BuildException("port is null or name is null");
         }
-		if (port != null)
-			useSocket = true;
-		else
-			useSocket = false;
+		List<HotswapTarget> all = new ArrayList<HotswapTarget>();
+		if ((port != null) || (name != null) || (daemonPort >= 0) || (pid != null))
+			all.add(new HotswapTarget(host, port, name, daemonPort, transport, pid));
+		for (int i = 0; i < targets.size(); i++)
+			all.add((HotswapTarget) targets.elementAt(i));
+		for (HotswapTarget vm : all) {
+			vm.checkParameters(transport);
+			// the classes waiting to be loaded are forgotten when the connection ends
+			if (deferred && !watch && vm.isDirect(transport))
+				throw new BuildException("deferred needs watch to keep the connection to " + vm
+					+ " open, or the daemon or agent transport");
+			if (deferred && !watch && stopAgent && vm.isAgent(transport))
+				throw new BuildException("deferred needs watch to keep the agent in " + vm
+					+ " running, without stopagent");
+		}
+    }
+
+    /**
+     * Check that there is something to replace the classes with.
+     * @exception BuildException if an error occurs
+     */
+    protected void checkSources() throws BuildException {
+        if (filesets.size() == 0 && zipfilesets.size() == 0) {
+            throw new BuildException("At least one of the file or dir "
+                                     + "attributes, or a fileset element, "
+                                     + "must be set.");
+        }
     }
 
     /**
-     * remove an array of files in a directory, and a list of subdirectories
-     * which will only be deleted if 'includeEmpty' is true
-     * @param hsh the hotswap helper class
+     * collect an array of files in a directory, and a list of subdirectories
+     * for the next redefinition batch
      * @param d directory to work from
-     * @param files array of files to delete; can be of zero length
-     * @param dirs array of directories to delete; can of zero length
+     * @param files array of files to swap; can be of zero length
+     * @param dirs array of directories to swap; can of zero length
      */
-    protected void hotswapFiles(HotSwapHelper hsh, File d, String[] files, String[] dirs) throws Exception {
+    protected void hotswapFiles(File d, String[] files, String[] dirs) throws Exception {
         if (files.length > 0) {
-            log("hotswapping " + files.length + " files from "
+            log("collecting " + files.length + " files from "
                 + d.getAbsolutePath());
             for (int j = 0; j < files.length; j++) {
-				processHotswap(hsh, d, files[j]);
+				processHotswap(d, files[j]);
             }
         }
 
@@ -270,7 +1217,7 @@ public class Hotswap extends MatchingTask {
             int dirCount = 0;
             for (int j = dirs.length - 1; j >= 0; j--) {
  				log("swapping dir " + d.getAbsolutePath() +", "+ dirs[j]);
-				processDirectory(hsh, d, dirs[j]);
+				processDirectory(d, dirs[j]);
 //                    dirCount++;
             }
 
@@ -283,30 +1230,276 @@ public class Hotswap extends MatchingTask {
         }
     }
 
-	private void processDirectory(HotSwapHelper hsh, File d, String subdir) throws Exception {
-		File [] files = new File(d, subdir).listFiles();
-		for (int i=0; i<files.length; i++) {
-			if (files[i].isDirectory()) {
-				processDirectory(hsh, d, getClassOrPackage(d, files[i]));
-			}
-			else {
-				processHotswap(hsh, d, getClassOrPackage(d, files[i]));
-			}
+	/**
+	 * collect the class entries of an archive for the next redefinition batch;
+	 * the class names come from the entry names, nothing is extracted
+	 * @param archive the jar or zip file
+	 * @param entries the names of the entries matched by the zipfileset
+	 */
+	protected void hotswapEntries(File archive, String[] entries) throws IOException {
+		log("collecting " + entries.length + " entries from " + archive.getAbsolutePath());
+		ZipFile zip = new ZipFile(archive);
+		archives.add(zip);
+		for (int j = 0; j < entries.length; j++) {
+			String entryName = entries[j].replace(File.separatorChar, '/');
+			// skip module descriptors and multi-release variants
+			if (!entryName.endsWith(".class") || entryName.startsWith("META-INF/")
+				|| entryName.endsWith("module-info.class"))
+				continue;
+			ZipEntry entry = zip.getEntry(entryName);
+			if (entry == null)
+				continue;
+			String className = entryName.substring(0, entryName.length()-6).replace('/', '.');
+			classFiles.put(className, new ClassLocation(zip, entry));
 		}
 	}
 
-	private String getClassOrPackage(File baseDir, File fileOrDir) {
-		return fileOrDir.getAbsolutePath().substring(baseDir.getAbsolutePath().length()+1);
+	private void processDirectory(final File d, String subdir) throws Exception {
+		final Path base = d.toPath();
+		Files.walkFileTree(base.resolve(subdir), new SimpleFileVisitor<Path>() {
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (file.getFileName().toString().endsWith(".class"))
+					processHotswap(d, base.relativize(file).toString());
+				return FileVisitResult.CONTINUE;
+			}
+		});
 	}
 
-	private void processHotswap(HotSwapHelper hsh, File d, String file) throws Exception {
+	private void processHotswap(File d, String file) {
 		File f = new File(d, file);
 		String className = file;
 		className = className.substring(0, className.length()-6);	// chop off ".class"
 		className = className.replace('/', '.');
 		className = className.replace('\\', '.');
-		if (verbose)
-			log("hotswapping " + className);
-		hsh.replace(f, className);
+		classFiles.put(className, new ClassLocation(f));
+	}
+
+	/**
+	 * Where a class comes from: a class file, or an entry of an archive.
+	 */
+	private static class ClassLocation {
+		final File file;
+		final ZipFile archive;
+		final ZipEntry entry;
+		final byte [] classBytes;
+
+		ClassLocation(File file) {
+			this(file, null, null, null);
+		}
+
+		ClassLocation(ZipFile archive, ZipEntry entry) {
+			this(null, archive, entry, null);
+		}
+
+		ClassLocation(byte [] classBytes) {
+			this(null, null, null, classBytes);
+		}
+
+		private ClassLocation(File file, ZipFile archive, ZipEntry entry, byte [] classBytes) {
+			this.file = file;
+			this.archive = archive;
+			this.entry = entry;
+			this.classBytes = classBytes;
+		}
+
+		byte [] read() throws IOException {
+			if (classBytes != null)
+				return classBytes;
+			if (file != null)
+				return HotSwapHelper.loadClassFile(file);
+			InputStream in = archive.getInputStream(entry);
+			try {
+				if (entry.getSize() >= 0) {
+					byte [] ret = new byte[(int)entry.getSize()];
+					new DataInputStream(in).readFully(ret);
+					return ret;
+				}
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte [] buffer = new byte[8192];
+				int count;
+				while ((count = in.read(buffer)) != -1)
+					out.write(buffer, 0, count);
+				return out.toByteArray();
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * A class file read by one of the reader threads.
+	 */
+	private static class ReadClass {
+		String className;
+		byte [] classBytes;
+		String digest;
+	}
+
+	/**
+	 * The classes of a group, read together by one of the reader threads so the
+	 * group ends up whole in a batch.
+	 */
+	private static class ReadGroup {
+		String name;
+		List<ReadClass> classes = new ArrayList<ReadClass>();
+		Exception error;
+	}
+
+	/**
+	 * Reads the class files loaded on at least one VM, and sends the ones which
+	 * changed. The groups are read and digested in parallel, and handed over through
+	 * a bounded queue to this thread, which alone deals with the VMs. The groups go
+	 * out in the order of their names, so a package is swapped in as few batches as
+	 * possible, and a batch is sent as soon as the next group doesn't fit in it.
+	 */
+	private void readClasses(Set<String> anyLoaded) throws Exception {
+		Map<String, List<Map.Entry<String, ClassLocation>>> toRead = new TreeMap<String, List<Map.Entry<String, ClassLocation>>>();
+		for (Map.Entry<String, ClassLocation> entry : classFiles.entrySet()) {
+			// a class which isn't loaded on the VM can't be replaced, don't bother reading it
+			if (anyLoaded.contains(entry.getKey())) {
+				String group = HotSwapHelper.groupOf(entry.getKey());
+				List<Map.Entry<String, ClassLocation>> members = toRead.get(group);
+				if (members == null) {
+					members = new ArrayList<Map.Entry<String, ClassLocation>>();
+					toRead.put(group, members);
+				}
+				members.add(entry);
+			}
+			else {
+				if (verbose)
+					log("not loaded " + entry.getKey());
+				notLoaded++;
+			}
+		}
+
+		// hand the groups out in order, at most READ_QUEUE_SIZE of them past the next one
+		// to send, so that a slow group doesn't let all the others pile up behind it
+		List<Map.Entry<String, List<Map.Entry<String, ClassLocation>>>> groups
+			= new ArrayList<Map.Entry<String, List<Map.Entry<String, ClassLocation>>>>(toRead.entrySet());
+		BlockingQueue<ReadGroup> queue = new ArrayBlockingQueue<ReadGroup>(READ_QUEUE_SIZE);
+		int submitted = 0;
+		while (submitted < Math.min(READ_QUEUE_SIZE, groups.size()))
+			readGroup(groups.get(submitted++), queue);
+
+		// take every group submitted, even after a failure, so no reader stays blocked;
+		// the groups are buffered until their turn comes
+		Map<String, ReadGroup> arrived = new HashMap<String, ReadGroup>();
+		int next = 0;
+		Exception error = null;
+		for (int taken = 0; taken < submitted; taken++) {
+			long wait = System.nanoTime();
+			ReadGroup read = queue.take();
+			stats.time("read", wait);
+			if (read.error != null) {
+				if (error == null)
+					error = new BuildException("cannot read " + read.name + ": " + read.error, read.error);
+				continue;
+			}
+			if (error != null)
+				continue;
+			arrived.put(read.name, read);
+			ReadGroup ready;
+			while (next < groups.size() && (ready = arrived.remove(groups.get(next).getKey())) != null) {
+				addGroup(ready);
+				next++;
+				if (submitted < groups.size())
+					readGroup(groups.get(submitted++), queue);
+			}
+		}
+		if (error != null)
+			throw error;
+	}
+
+	/**
+	 * Reads the classes of a group on the read pool, and queues them with their
+	 * digests, or the error met.
+	 */
+	private void readGroup(final Map.Entry<String, List<Map.Entry<String, ClassLocation>>> group,
+			final BlockingQueue<ReadGroup> queue) {
+		readPool().execute(new Runnable() {
+			public void run() {
+				ReadGroup read = new ReadGroup();
+				read.name = group.getKey();
+				try {
+					for (Map.Entry<String, ClassLocation> entry : group.getValue()) {
+						ReadClass readClass = new ReadClass();
+						readClass.className = entry.getKey();
+						readClass.classBytes = entry.getValue().read();
+						if (digestCache != null) {
+							readClass.digest = ignoreDebugInfo
+								? ClassFile.parse(readClass.classBytes).getCanonicalDigest()
+								: DigestCache.digest(readClass.classBytes);
+						}
+						read.classes.add(readClass);
+					}
+				} catch (Exception ex) {
+					read.error = ex;
+				}
+				try {
+					queue.put(read);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+	}
+
+	private void addGroup(ReadGroup read) throws Exception {
+		Map<String, byte[]> changed = new LinkedHashMap<String, byte[]>();
+		int size = 0;
+		for (ReadClass readClass : read.classes) {
+			if (readClass.digest != null) {
+				if (isUnchanged(readClass)) {
+					if (verbose)
+						log("unchanged " + readClass.className);
+					unchanged++;
+					continue;
+				}
+				digests.put(readClass.className, readClass.digest);
+			}
+			changed.put(readClass.className, readClass.classBytes);
+			size += readClass.classBytes.length;
+		}
+		if (changed.isEmpty())
+			return;
+
+		// never split a group, even one above the limits
+		if (!classes.isEmpty()
+			&& ((maxBatchBytes > 0 && batchBytes + size > maxBatchBytes)
+				|| (maxBatchClasses > 0 && classes.size() + changed.size() > maxBatchClasses)))
+			sendBatch();
+		classes.putAll(changed);
+		batchBytes += size;
+	}
+
+	private ForkJoinPool readPool() {
+		if (readPool == null)
+			readPool = new ForkJoinPool(readThreads > 0 ? readThreads : Runtime.getRuntime().availableProcessors());
+		return readPool;
+	}
+
+	/**
+	 * Tells whether every VM which loaded the class runs the version read.
+	 */
+	private boolean isUnchanged(ReadClass readClass) {
+		for (HotswapTarget vm : vms) {
+			if (vm.loaded.contains(readClass.className)
+				&& !digestCache.isUnchanged(vm.toString(), readClass.className, readClass.digest))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Records the digests of the classes now running on a VM: those it had loaded,
+	 * outside of the groups it rejected.
+	 */
+	private void updateDigests(HotswapTarget vm) {
+		if (digestCache == null)
+			return;
+		for (Map.Entry<String, String> entry : digests.entrySet()) {
+			if (vm.loaded.contains(entry.getKey()) && !vm.failures.containsKey(HotSwapHelper.groupOf(entry.getKey())))
+				digestCache.put(vm.toString(), entry.getKey(), entry.getValue());
+		}
 	}
 }
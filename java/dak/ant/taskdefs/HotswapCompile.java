@@ -0,0 +1,366 @@
+/*
+ * Copyright  2000-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dak.ant.taskdefs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.Path;
+import org.apache.tools.ant.types.Reference;
+import org.apache.tools.ant.util.GlobPatternMapper;
+import org.apache.tools.ant.util.SourceFileScanner;
+
+/**
+ * This task compiles Java sources in memory and replaces the resulting classes on
+ * a running JVM, without writing class files and scanning them back first. It takes
+ * the arguments of the <hotswap> task, plus:
+ * <ul>
+ * <li/>srcdir
+ * <li/>classpath
+ * <li/>destdir
+ * <li/>debug
+ * <li/>source
+ * <li/>target
+ * <li/>encoding
+ * </ul>
+ * The sources are selected in <b>srcdir</b> with the usual includes and excludes.
+ * When <b>destdir</b> is set, only the sources newer than their class file there are
+ * compiled, and the class files are written to it in the background while the
+ * classes are being swapped. It is also put on the classpath.
+ * <p/>
+ * Add this line to your build.xml<br/>
+ * <code>
+ *   <taskdef name="hotswapcompile" classname="dak.ant.taskdefs.HotswapCompile"/>
+ * </code>
+ * <p/>
+ * This is an example of how to compile and hotswap with a JVM on port 9000
+ * <br/>
+ * <code>
+ *	<hotswapcompile port="9000" srcdir="src" destdir="build/classes" classpathref="cp"/>
+ * </code>
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+
+public class HotswapCompile extends Hotswap {
+
+	private Path src;
+	private Path compileClasspath;
+	private File destDir;
+	private boolean debug = true;
+	private String source;
+	private String target;
+	private String encoding;
+
+	private Thread writer;
+	private IOException writeError;
+
+    /**
+     * HotswapCompile task for compilation of Java files to a running JVM.
+     */
+    public HotswapCompile() { }
+
+    /**
+     * Adds a path for source compilation.
+     * @return a nested src element
+     */
+    public Path createSrc() {
+        if (src == null) {
+            src = new Path(getProject());
+        }
+        return src.createPath();
+    }
+
+    /**
+     * Sets the source directories to find the source Java files.
+     * @param srcDir the source directories as a path
+     */
+    public void setSrcdir(Path srcDir) {
+        if (src == null) {
+            src = srcDir;
+        } else {
+            src.append(srcDir);
+        }
+    }
+
+    /**
+     * Sets the classpath to compile the sources against.
+     * @param classpath an Ant Path object containing the compilation classpath
+     */
+    public void setClasspath(Path classpath) {
+        createClasspath().append(classpath);
+    }
+
+    /**
+     * Adds a path to the classpath.
+     * @return a class path to be configured
+     */
+    public Path createClasspath() {
+        if (compileClasspath == null) {
+            compileClasspath = new Path(getProject());
+        }
+        return compileClasspath.createPath();
+    }
+
+    /**
+     * Adds a reference to a classpath defined elsewhere.
+     * @param r a reference to a classpath
+     */
+    public void setClasspathRef(Reference r) {
+        createClasspath().setRefid(r);
+    }
+
+    /**
+     * Sets the directory the class files are also written to. Only the sources
+     * newer than their class file there are compiled.
+     * @param destDir the destination directory
+     */
+    public void setDestdir(File destDir) {
+        this.destDir = destDir;
+    }
+
+    /**
+     * Indicates whether source should be compiled with debug information;
+     * defaults to on.
+     * @param debug if true compile with debug information
+     */
+    public void setDebug(boolean debug) {
+        this.debug = debug;
+    }
+
+    /**
+     * Value of the -source command-line switch.
+     * @param source the source version
+     */
+    public void setSource(String source) {
+        this.source = source;
+    }
+
+    /**
+     * Value of the -target command-line switch.
+     * @param target the target VM version
+     */
+    public void setTarget(String target) {
+        this.target = target;
+    }
+
+    /**
+     * Java file encoding.
+     * @param encoding the source file encoding
+     */
+    public void setEncoding(String encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * Executes the task.
+     * @exception BuildException if an error occurs
+     */
+    public void execute() throws BuildException {
+        try {
+            super.execute();
+        } finally {
+            waitForWriter();
+        }
+    }
+
+    /**
+     * Check that the source directories have been set.
+     * @exception BuildException if an error occurs
+     */
+    protected void checkSources() throws BuildException {
+        if (src == null || src.size() == 0) {
+            throw new BuildException("srcdir attribute must be set!");
+        }
+        if (filesets.size() > 0 || zipfilesets.size() > 0) {
+            throw new BuildException("hotswapcompile takes its classes from srcdir, nested filesets and zipfilesets are not supported");
+        }
+    }
+
+	/**
+	 * Compiles the sources in memory, and hands the class bytes over to the swap.
+	 */
+	protected void collectClasses() throws Exception {
+		List<File> sources = new ArrayList<File>();
+		String [] dirs = src.list();
+		for (int i = 0; i < dirs.length; i++) {
+			File srcDir = getProject().resolveFile(dirs[i]);
+			if (!srcDir.exists()) {
+				throw new BuildException("srcdir \"" + srcDir.getPath() + "\" does not exist!");
+			}
+			DirectoryScanner ds = getDirectoryScanner(srcDir);
+			String [] files = ds.getIncludedFiles();
+			if (destDir != null) {
+				GlobPatternMapper mapper = new GlobPatternMapper();
+				mapper.setFrom("*.java");
+				mapper.setTo("*.class");
+				files = new SourceFileScanner(this).restrict(files, srcDir, destDir, mapper);
+			}
+			for (int j = 0; j < files.length; j++) {
+				if (files[j].endsWith(".java"))
+					sources.add(new File(srcDir, files[j]));
+			}
+		}
+		if (sources.isEmpty()) {
+			log("no source to compile");
+			return;
+		}
+
+		long start = System.nanoTime();
+		final Map<String, byte[]> compiled = compile(sources);
+		stats.time("compile", start);
+		for (Map.Entry<String, byte[]> entry : compiled.entrySet()) {
+			collectClass(entry.getKey(), entry.getValue());
+		}
+
+		if (destDir != null) {
+			writer = new Thread("hotswap class writer") {
+				public void run() {
+					try {
+						writeClasses(compiled);
+					} catch (IOException ex) {
+						writeError = ex;
+					}
+				}
+			};
+			writer.start();
+		}
+	}
+
+	private Map<String, byte[]> compile(List<File> sources) throws IOException {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null) {
+			throw new BuildException("no Java compiler available, is this a JDK?");
+		}
+		log("compiling " + sources.size() + " source file" + (sources.size() == 1 ? "" : "s") + " in memory");
+
+		List<String> options = new ArrayList<String>();
+		options.add(debug ? "-g" : "-g:none");
+		if (source != null) {
+			options.add("-source");
+			options.add(source);
+		}
+		if (target != null) {
+			options.add("-target");
+			options.add(target);
+		}
+		if (encoding != null) {
+			options.add("-encoding");
+			options.add(encoding);
+		}
+		options.add("-sourcepath");
+		options.add(src.toString());
+		Path classpath = new Path(getProject());
+		if (destDir != null)
+			classpath.createPathElement().setLocation(destDir);
+		if (compileClasspath != null)
+			classpath.append(compileClasspath);
+		options.add("-classpath");
+		options.add(classpath.toString());
+
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+		StandardJavaFileManager standard = compiler.getStandardFileManager(diagnostics, null, null);
+		MemoryFileManager fileManager = new MemoryFileManager(standard);
+		try {
+			Boolean ok = compiler.getTask(null, fileManager, diagnostics, options, null,
+				standard.getJavaFileObjectsFromFiles(sources)).call();
+			for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+				log(diagnostic.getMessage(Locale.getDefault()),
+					diagnostic.getKind() == Diagnostic.Kind.ERROR ? Project.MSG_ERR : Project.MSG_WARN);
+			}
+			if (!ok.booleanValue()) {
+				throw new BuildException("Compile failed; see the compiler error output for details.");
+			}
+		} finally {
+			fileManager.close();
+		}
+		return fileManager.classes;
+	}
+
+	private void writeClasses(Map<String, byte[]> classes) throws IOException {
+		for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+			File classFile = new File(destDir, entry.getKey().replace('.', File.separatorChar) + ".class");
+			Files.createDirectories(classFile.getParentFile().toPath());
+			Files.write(classFile.toPath(), entry.getValue());
+		}
+	}
+
+	private void waitForWriter() {
+		if (writer == null)
+			return;
+		try {
+			writer.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		writer = null;
+		if (writeError != null) {
+			IOException ex = writeError;
+			writeError = null;
+			throw new BuildException("cannot write the class files to " + destDir + ": " + ex, ex);
+		}
+	}
+
+	/**
+	 * Keeps the class files produced by the compiler in memory.
+	 */
+	private static class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+		final Map<String, byte[]> classes = Collections.synchronizedMap(new LinkedHashMap<String, byte[]>());
+
+		MemoryFileManager(StandardJavaFileManager fileManager) {
+			super(fileManager);
+		}
+
+		public JavaFileObject getJavaFileForOutput(JavaFileManager.Location location, final String className,
+				JavaFileObject.Kind kind, FileObject sibling) throws IOException {
+			if (kind != JavaFileObject.Kind.CLASS)
+				return super.getJavaFileForOutput(location, className, kind, sibling);
+			return new SimpleJavaFileObject(URI.create("mem:///" + className.replace('.', '/') + ".class"), kind) {
+				public OutputStream openOutputStream() {
+					return new ByteArrayOutputStream() {
+						public void close() {
+							classes.put(className, toByteArray());
+						}
+					};
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright  2000-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dak.ant.taskdefs;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.tools.ant.BuildException;
+
+import dak.debug.HotSwapHelper;
+import dak.debug.SwapHistory;
+import dak.debug.SwapStats;
+
+/**
+ * One of the VMs the <hotswap> task replaces classes on, given as a nested
+ * <target> element. It takes the same <b>host</b>, <b>port</b>, <b>name</b>,
+ * <b>daemon</b>, <b>transport</b> and <b>pid</b> attributes as the task itself.
+ * Without a <b>transport</b>, the one of the task is used.
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+public class HotswapTarget {
+	protected String host;
+	protected String port;
+	protected String name;
+	protected int daemonPort = -1;
+	protected String transport;
+	protected String pid;
+
+	// state of the current run
+	HotSwapHelper hsh;
+	Set<String> loaded = new HashSet<String>();
+	Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+	int swapped;
+	SwapStats stats;
+	Exception error;
+
+	public HotswapTarget() { }
+
+	HotswapTarget(String host, String port, String name, int daemonPort, String transport, String pid) {
+		this.host = host;
+		this.port = port;
+		this.name = name;
+		this.daemonPort = daemonPort;
+		this.transport = transport;
+		this.pid = pid;
+	}
+
+    /**
+     * Sets the name of the host with the running VM.
+     * @param host the host to be used when connecting to a running VM
+     */
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    /**
+     * Sets the socket address of the host with the running VM.
+     * @param port the socket address to be used when connecting to a running VM
+     */
+    public void setPort(String port) {
+        this.port = port;
+    }
+
+    /**
+     * Sets the shared mem name to use when connecting to the running VM.
+     * @param name the shared memory name
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Sets the local port of a running {@link dak.debug.HotSwapDaemon}.
+     * @param daemonPort the port the daemon listens on
+     */
+    public void setDaemon(int daemonPort) {
+        this.daemonPort = daemonPort;
+    }
+
+    /**
+     * Sets how the classes are sent to the VM: "jdwp" to attach with the debugger
+     * interface, or "agent" to load a {@link dak.debug.HotSwapAgent} in a local VM.
+     * @param transport "jdwp" or "agent"
+     */
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Sets the local VM to load the agent in, with the "agent" transport.
+     * @param pid the process id, or a part of the main class or jar name of the VM
+     */
+    public void setPid(String pid) {
+        this.pid = pid;
+    }
+
+	void checkParameters(String defaultTransport) throws BuildException {
+		String t = transport != null ? transport : defaultTransport;
+		if (Hotswap.AGENT.equals(t)) {
+			if (pid == null)
+				throw new BuildException("the agent transport needs a pid");
+		}
+		else if (!Hotswap.JDWP.equals(t)) {
+			throw new BuildException("unknown transport " + t + ", use " + Hotswap.JDWP + " or " + Hotswap.AGENT);
+		}
+		else if ((port == null) && (name == null) && (daemonPort < 0)) {
+			throw new BuildException("port is null or name is null");
+		}
+	}
+
+	/**
+	 * Tells whether the VM is attached to directly through JDWP, a connection which
+	 * ends with the run, unlike those of the agent and of a daemon.
+	 */
+	boolean isDirect(String defaultTransport) {
+		return !isAgent(defaultTransport) && (daemonPort < 0);
+	}
+
+	/**
+	 * Tells whether the classes go through an agent loaded in the VM.
+	 */
+	boolean isAgent(String defaultTransport) {
+		return Hotswap.AGENT.equals(transport != null ? transport : defaultTransport);
+	}
+
+	void connect(boolean preflight, String defaultTransport, String classLoader, File historyDir, int historySize,
+			boolean stopAgent) throws Exception {
+		HotSwapHelper helper = new HotSwapHelper();
+		helper.setPreflight(preflight);
+		helper.setStopAgent(stopAgent);
+		helper.setClassLoaderFilter(classLoader);
+		if (historyDir != null)
+			helper.setHistory(new SwapHistory(new File(historyDir, toString().replaceAll("[^A-Za-z0-9._-]", "_")), historySize));
+		stats = helper.getStats();
+		if (isAgent(defaultTransport)) {
+			helper.connectAgent(pid);
+		}
+		else if (daemonPort >= 0) {
+			helper.connectDaemon(daemonPort);
+		}
+		else if (port != null) {
+			helper.connect(host, port);
+		}
+		else {
+			helper.connect(name);
+		}
+		hsh = helper;
+	}
+
+	void disconnect() throws Exception {
+		if (hsh != null) {
+			hsh.disconnect();
+			hsh = null;
+		}
+	}
+
+	public String toString() {
+		if (pid != null && port == null && name == null && daemonPort < 0)
+			return "pid:" + pid;
+		if (daemonPort >= 0)
+			return "daemon:" + daemonPort;
+		if (port != null)
+			return (host == null ? "localhost" : host) + ":" + port;
+		return name;
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright  2000-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dak.ant.taskdefs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Replaces the occurrences of several byte sequences at once, in a single pass over
+ * the bytes, with an Aho-Corasick automaton turned into a table of transitions.
+ * Occurrences are found leftmost-longest: the one starting first wins and, among
+ * those starting at the same byte, the longest; the search goes on after its end.
+ * <p/>
+ * The bytes are only held back while they may still be part of an occurrence, which
+ * is never longer than the longest sequence searched.
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+class MultiReplacer implements Replacer {
+	private static final int BUFFER_SIZE = 64*1024;
+
+	private final byte [][] replace;
+	private final int maxLength;
+	// the bytes found in the sequences each have a class, the other bytes share class 0
+	private final int [] byteClass = new int[256];
+	private final int classes;
+	// the next state, at [state * classes + class]
+	private final int [] next;
+	// the length of the string leading to each state
+	private final int [] depth;
+	// the longest sequence ending with the string of each state, and its length (0 if none)
+	private final int [] match;
+	private final int [] matchLength;
+	// the bytes which can start an occurrence
+	private final boolean [] starts = new boolean[256];
+
+	/**
+	 * @param find the sequences to search, none of them empty nor given twice
+	 * @param replace the replacement of each of them
+	 */
+	MultiReplacer(List<byte[]> find, List<byte[]> replace) {
+		this.replace = replace.toArray(new byte[replace.size()][]);
+		int total = 0;
+		int longest = 0;
+		int classCount = 1;
+		for (byte [] sequence : find) {
+			if (sequence.length == 0)
+				throw new IllegalArgumentException("nothing to find");
+			total += sequence.length;
+			longest = Math.max(longest, sequence.length);
+			starts[sequence[0] & 0xff] = true;
+			for (int i=0; i<sequence.length; i++) {
+				if (byteClass[sequence[i] & 0xff] == 0)
+					byteClass[sequence[i] & 0xff] = classCount++;
+			}
+		}
+		maxLength = longest;
+		classes = classCount;
+
+		// the trie of the sequences
+		int [] trie = new int[(total + 1) * classes];
+		int [] depths = new int[total + 1];
+		int [] matches = new int[total + 1];
+		int [] matchLengths = new int[total + 1];
+		Arrays.fill(trie, -1);
+		int states = 1;
+		for (int p=0; p<find.size(); p++) {
+			byte [] sequence = find.get(p);
+			int state = 0;
+			for (int i=0; i<sequence.length; i++) {
+				int at = state * classes + byteClass[sequence[i] & 0xff];
+				if (trie[at] < 0) {
+					depths[states] = depths[state] + 1;
+					trie[at] = states++;
+				}
+				state = trie[at];
+			}
+			if (matchLengths[state] > 0)
+				throw new IllegalArgumentException("searched twice: " + new String(sequence));
+			matches[state] = p;
+			matchLengths[state] = sequence.length;
+		}
+
+		// breadth first, the missing transitions become those of the failure state
+		int [] fail = new int[states];
+		int [] queue = new int[states];
+		int head = 0;
+		int tail = 0;
+		for (int c=0; c<classes; c++) {
+			int child = trie[c];
+			if (child < 0) {
+				trie[c] = 0;
+			}
+			else {
+				fail[child] = 0;
+				queue[tail++] = child;
+			}
+		}
+		while (head < tail) {
+			int state = queue[head++];
+			if (matchLengths[state] == 0) {
+				matches[state] = matches[fail[state]];
+				matchLengths[state] = matchLengths[fail[state]];
+			}
+			for (int c=0; c<classes; c++) {
+				int at = state * classes + c;
+				int child = trie[at];
+				if (child < 0) {
+					trie[at] = trie[fail[state] * classes + c];
+				}
+				else {
+					fail[child] = trie[fail[state] * classes + c];
+					queue[tail++] = child;
+				}
+			}
+		}
+
+		next = Arrays.copyOf(trie, states * classes);
+		depth = Arrays.copyOf(depths, states);
+		match = Arrays.copyOf(matches, states);
+		matchLength = Arrays.copyOf(matchLengths, states);
+	}
+
+	public long replace(InputStream in, OutputStream out) throws IOException {
+		// the bytes held back from the previous read are moved to the start
+		byte [] buffer = new byte[BUFFER_SIZE + maxLength];
+		long count = 0;
+		int state = 0;
+		// the best occurrence so far: start in the buffer, length and sequence
+		int start = -1;
+		int length = 0;
+		int sequence = 0;
+		// the bytes before written are written, those up to i are fed to the automaton
+		int written = 0;
+		int i = 0;
+		int limit = 0;
+		boolean eof = false;
+		while (!eof) {
+			int n = in.read(buffer, limit, BUFFER_SIZE);
+			if (n == -1)
+				eof = true;
+			else
+				limit += n;
+
+			while (true) {
+				while (i < limit) {
+					if (state == 0 && start < 0) {
+						while (i < limit && !starts[buffer[i] & 0xff])
+							i++;
+						if (i == limit)
+							break;
+					}
+					state = next[state * classes + byteClass[buffer[i++] & 0xff]];
+					int m = matchLength[state];
+					if (m > 0 && (start < 0 || i - m < start || (i - m == start && m > length))) {
+						start = i - m;
+						length = m;
+						sequence = match[state];
+					}
+					// no occurrence found from now on can start before the best one
+					if (start >= 0 && i - depth[state] > start) {
+						out.write(buffer, written, start - written);
+						out.write(replace[sequence]);
+						count++;
+						written = i = start + length;
+						state = 0;
+						start = -1;
+					}
+				}
+				if (!eof || start < 0)
+					break;
+				// nothing more can come: the best occurrence is the one
+				out.write(buffer, written, start - written);
+				out.write(replace[sequence]);
+				count++;
+				written = i = start + length;
+				state = 0;
+				start = -1;
+			}
+
+			// keep the bytes of the current state, which may still turn into an occurrence
+			int keep = eof ? limit : i - depth[state];
+			out.write(buffer, written, keep - written);
+			System.arraycopy(buffer, keep, buffer, 0, limit - keep);
+			if (start >= 0)
+				start -= keep;
+			i -= keep;
+			limit -= keep;
+			written = 0;
+		}
+		return count;
+	}
+
+	public long overlap() {
+		return maxLength - 1;
+	}
+
+	public boolean matches(ByteBuffer bytes) {
+		int state = 0;
+		for (int i=0, n=bytes.limit(); i<n; i++) {
+			int b = bytes.get(i) & 0xff;
+			if (state == 0 && !starts[b])
+				continue;
+			state = next[state * classes + byteClass[b]];
+			if (matchLength[state] > 0)
+				return true;
+		}
+		return false;
+	}
+}
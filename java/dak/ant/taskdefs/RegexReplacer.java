@@ -0,0 +1,291 @@
+/*
+ * Copyright  2000-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dak.ant.taskdefs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replaces the matches of a regular expression in a stream of characters, which is
+ * searched through a window of constant size sliding over it. The window keeps, before
+ * the characters not searched yet, as many already searched ones for the lookbehinds
+ * and the boundaries, and after them, as many ones as a match may be long at most.
+ * A match is taken once it can't be changed by the characters still to come: when
+ * the matcher didn't need more of them, or when it starts far enough from the end of
+ * the window for a longer match to exceed the maximum length.
+ * <p/>
+ * The replacement refers to the groups of the match as {@link Matcher#appendReplacement}
+ * does: <code>$1</code>, <code>${name}</code>, and <code>\</code> before a character
+ * to take it as it is.
+ * <p/>
+ * The input is decoded strictly, so that bytes which don't belong to the encoding fail
+ * the file rather than being replaced. Only the scans deciding which files to rewrite
+ * take them as they come, as a part of a file may start or end within a character.
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+class RegexReplacer implements Replacer {
+	private static final int BUFFER_SIZE = 64*1024;
+
+	private final Pattern pattern;
+	private final Charset charset;
+	private final int maxMatch;
+	// the parts of the replacement: a String as it is, an Integer the number of a
+	// group, a Name the name of one
+	private final List<Object> parts = new ArrayList<Object>();
+
+	/**
+	 * @param pattern the expression to search
+	 * @param replace the replacement of its matches, with references to its groups
+	 * @param charset the encoding of the streams
+	 * @param maxMatch how many characters a match is long at most
+	 */
+	RegexReplacer(Pattern pattern, String replace, Charset charset, int maxMatch) {
+		if (maxMatch <= 0)
+			throw new IllegalArgumentException("the maximum length of a match must be positive");
+		this.pattern = pattern;
+		this.charset = charset;
+		this.maxMatch = maxMatch;
+		parseReplacement(replace, pattern.matcher("").groupCount());
+	}
+
+	public long replace(InputStream in, OutputStream out) throws IOException {
+		Writer writer = new OutputStreamWriter(out, charset.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT));
+		long count = search(reader(in, CodingErrorAction.REPORT), writer, false);
+		// the stream itself is closed by the caller
+		writer.flush();
+		return count;
+	}
+
+	public boolean matches(ByteBuffer bytes) throws IOException {
+		return search(reader(new BufferInputStream(bytes), CodingErrorAction.REPLACE), null, true) > 0;
+	}
+
+	/**
+	 * A match and what it may look behind at, in as many bytes as its characters may
+	 * take, and a character cut by the start of the window.
+	 */
+	public long overlap() {
+		long bytesPerChar = (long) Math.ceil(charset.newEncoder().maxBytesPerChar());
+		return (2L*maxMatch + 1) * bytesPerChar;
+	}
+
+	private Reader reader(InputStream in, CodingErrorAction malformed) {
+		return new InputStreamReader(in, charset.newDecoder()
+			.onMalformedInput(malformed).onUnmappableCharacter(malformed));
+	}
+
+	/**
+	 * Slides the window over the input, writing it with the matches replaced, if there
+	 * is an output.
+	 * @param first whether to stop at the first match
+	 * @return the number of matches
+	 */
+	private long search(Reader in, Writer out, boolean first) throws IOException {
+		// what is kept of the window after it is searched can't exceed 2 * maxMatch
+		char [] window = new char[BUFFER_SIZE + 2*maxMatch];
+		Matcher matcher = pattern.matcher("");
+		matcher.useTransparentBounds(true);
+		matcher.useAnchoringBounds(false);
+		StringBuilder replacement = new StringBuilder();
+		long count = 0;
+		// window[0..pos) has been searched, and written up to pos
+		int pos = 0;
+		int limit = 0;
+		// whether an empty match was replaced at pos, not to be replaced again
+		boolean emptyAtPos = false;
+		boolean eof = false;
+		while (!eof) {
+			while (limit < window.length) {
+				int n = in.read(window, limit, window.length - limit);
+				if (n == -1) {
+					eof = true;
+					break;
+				}
+				limit += n;
+			}
+
+			matcher.reset(CharBuffer.wrap(window, 0, limit));
+			matcher.region(pos, limit);
+			while (matcher.find()) {
+				if (emptyAtPos && matcher.end() == pos && matcher.start() == pos)
+					continue;
+				// more input could make an earlier or a longer match, or undo one which
+				// ends at the end of the window, as $ and \b do
+				if (!eof && (matcher.hitEnd() || matcher.requireEnd()) && matcher.start() >= limit - maxMatch)
+					break;
+				count++;
+				if (first)
+					return count;
+				if (out != null) {
+					out.write(window, pos, matcher.start() - pos);
+					replacement.setLength(0);
+					appendReplacement(matcher, replacement);
+					out.append(replacement);
+				}
+				emptyAtPos = matcher.end() == matcher.start();
+				pos = matcher.end();
+			}
+			// with more input, a match could still start within maxMatch of the end, or
+			// the one put off be taken back
+			int done = !eof && (matcher.hitEnd() || matcher.requireEnd()) ? limit - maxMatch : limit;
+			if (done > pos) {
+				if (out != null)
+					out.write(window, pos, done - pos);
+				emptyAtPos = false;
+				pos = done;
+			}
+
+			// keep what the next matches may look behind at
+			int keep = Math.max(0, pos - maxMatch);
+			System.arraycopy(window, keep, window, 0, limit - keep);
+			pos -= keep;
+			limit -= keep;
+		}
+		if (out != null)
+			out.write(window, pos, limit - pos);
+		return count;
+	}
+
+	private void appendReplacement(Matcher matcher, StringBuilder to) {
+		for (Object part : parts) {
+			String text;
+			if (part instanceof Integer)
+				text = matcher.group(((Integer) part).intValue());
+			else if (part instanceof Name)
+				text = matcher.group(((Name) part).name);
+			else
+				text = (String) part;
+			// a group which took no part in the match is replaced with nothing
+			if (text != null)
+				to.append(text);
+		}
+	}
+
+	/**
+	 * Splits the replacement into text and references to the groups, checking the
+	 * references as {@link Matcher#appendReplacement} would, but once for all.
+	 */
+	private void parseReplacement(String replace, int groupCount) {
+		StringBuilder text = new StringBuilder();
+		int i = 0;
+		while (i < replace.length()) {
+			char c = replace.charAt(i++);
+			if (c == '\\') {
+				if (i == replace.length())
+					throw new IllegalArgumentException("character to escape is missing in " + replace);
+				text.append(replace.charAt(i++));
+			}
+			else if (c == '$') {
+				if (i == replace.length())
+					throw new IllegalArgumentException("group reference is missing in " + replace);
+				Object group;
+				if (replace.charAt(i) == '{') {
+					int end = replace.indexOf('}', i);
+					if (end < 0)
+						throw new IllegalArgumentException("named group reference is missing '}' in " + replace);
+					String name = replace.substring(i + 1, end);
+					if (name.length() == 0 || !name.matches("[a-zA-Z][a-zA-Z0-9]*"))
+						throw new IllegalArgumentException("invalid group name " + name + " in " + replace);
+					// the names of the groups can't be asked to a pattern, they are read from it
+					if (!Pattern.compile("\\(\\?<" + name + ">").matcher(pattern.pattern()).find())
+						throw new IllegalArgumentException("no group " + name + " in " + pattern);
+					group = new Name(name);
+					i = end + 1;
+				}
+				else {
+					// the longest group number that exists, as Matcher does
+					if (!Character.isDigit(replace.charAt(i)))
+						throw new IllegalArgumentException("illegal group reference in " + replace);
+					int number = replace.charAt(i++) - '0';
+					if (number > groupCount)
+						throw new IllegalArgumentException("no group " + number + " in " + pattern);
+					while (i < replace.length() && Character.isDigit(replace.charAt(i))) {
+						int longer = number * 10 + replace.charAt(i) - '0';
+						if (longer > groupCount)
+							break;
+						number = longer;
+						i++;
+					}
+					group = Integer.valueOf(number);
+				}
+				if (text.length() > 0) {
+					parts.add(text.toString());
+					text.setLength(0);
+				}
+				parts.add(group);
+			}
+			else {
+				text.append(c);
+			}
+		}
+		if (text.length() > 0)
+			parts.add(text.toString());
+	}
+
+	/**
+	 * Reads a buffer from 0 to its limit, leaving its position as it is.
+	 */
+	private static class BufferInputStream extends InputStream {
+		private final ByteBuffer bytes;
+
+		BufferInputStream(ByteBuffer bytes) {
+			// a buffer of its own, whose position is moved by the reads
+			this.bytes = bytes.duplicate();
+			((Buffer) this.bytes).rewind();
+		}
+
+		public int read() {
+			return bytes.hasRemaining() ? bytes.get() & 0xff : -1;
+		}
+
+		public int read(byte [] b, int off, int len) {
+			if (!bytes.hasRemaining())
+				return -1;
+			int n = Math.min(len, bytes.remaining());
+			bytes.get(b, off, n);
+			return n;
+		}
+	}
+
+	/**
+	 * The name of a group, told apart from the text of the replacement.
+	 */
+	private static class Name {
+		final String name;
+
+		Name(String name) {
+			this.name = name;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright  2000-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dak.ant.taskdefs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The engine of the {@link SearchReplace} task: copies a stream, with what it
+ * searches replaced. An engine is built once per execution of the task, holds
+ * no state of its own, and is shared by the threads processing the files.
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+interface Replacer {
+
+	/**
+	 * Copies the input to the output, with the occurrences replaced.
+	 * @return the number of occurrences replaced
+	 */
+	long replace(InputStream in, OutputStream out) throws IOException;
+
+	/**
+	 * Tells whether the bytes, from 0 to their limit, hold an occurrence. The
+	 * position of the buffer is left as it is. This only picks the files to rewrite:
+	 * it may be wrong about bytes that the rewrite will turn down, as long as it
+	 * never misses an occurrence.
+	 */
+	boolean matches(ByteBuffer bytes) throws IOException;
+
+	/**
+	 * @return how many bytes an occurrence, with what it depends on around it, spans
+	 * at most, less one: the windows of a file scanned in parts overlap by as many
+	 */
+	long overlap();
+}
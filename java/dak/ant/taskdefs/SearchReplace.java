@@ -20,8 +20,34 @@ package dak.ant.taskdefs;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.DirectoryScanner;
 import org.apache.tools.ant.Project;
@@ -38,21 +64,49 @@ import org.apache.tools.ant.util.facade.FacadeTaskHelper;
 import org.apache.tools.ant.taskdefs.MatchingTask;
 
 /**
- * This task replaces class on a running JVM. This task can take the following
- * arguments:
+ * This task replaces a string with another in a set of files. This task can take
+ * the following arguments:
  * <ul>
  * <li/>verbose
  * <li/>failonerror
- * <li/>host
- * <li/>port
- * <li/>name
+ * <li/>find
+ * <li/>replace
+ * <li/>encoding
+ * <li/>threads
+ * <li/>replacementfile
+ * <li/>regex
+ * <li/>maxmatch
  * </ul>
- * Of these arguments, the <b>host</b> and <b>port</b> are required. Or,
- * the <b>name</b> can be used instead to indicate a shared mem connection.
+ * Of these arguments, <b>find</b> is required, unless the strings to replace are
+ * given by nested <b>replacement</b> elements (<code>&lt;replacement find="@HOST@"
+ * replace="localhost"/&gt;</code>) or by <b>replacementfile</b>, a properties file
+ * of <code>find=replace</code> lines, read with <b>encoding</b>. Without
+ * <b>replace</b>, the occurrences are removed.
  * <p/>
- * See the JPDA documentation for details on the JVM runtime options.
- * <a href="http://java.sun.com/j2se/1.4.2/docs/guide/jpda/conninv.html#Invocation">
- * http://java.sun.com/j2se/1.4.2/docs/guide/jpda/conninv.html#Invocation</a>
+ * All the strings are replaced in a single pass over each file, whatever their
+ * number. Where several of them match, the one starting first is replaced, or the
+ * longest of those starting at the same place. A string given more than once is
+ * replaced as the first time it is given: <b>find</b>, the nested elements, then
+ * the file.
+ * <p/>
+ * The files are not decoded: <b>find</b> and <b>replace</b> are encoded with
+ * <b>encoding</b> (the platform encoding by default), and the bytes of <b>find</b>
+ * are searched in each file as it streams through, in a single pass however many
+ * occurrences there are. Characters split across reads are thus never damaged. With
+ * an encoding such as UTF-16, whose characters don't start on every byte, an
+ * occurrence could be found out of step with the characters of the file.
+ * <p/>
+ * With <b>regex</b>, <b>find</b> is a regular expression, and <b>replace</b> may
+ * refer to its groups, as <code>$1</code> or <code>${name}</code> (<code>\$</code>
+ * for a plain dollar). The files are then decoded with <b>encoding</b>, and searched
+ * through a window sliding over them, so that a file is never held in memory whole.
+ * A match must not be longer than <b>maxmatch</b> characters (1024 by default), and
+ * lookbehinds see as many characters before it at most.
+ * <p/>
+ * The files are searched concurrently, on <b>threads</b> threads (one per core by
+ * default), while the messages of each file are logged in the order of the files.
+ * A file which can't be processed doesn't hold up the others: with <b>failonerror</b>,
+ * the task fails once the files in progress are done, without starting new ones.
  * <p/>
  * Add this line to your build.xml<br/>
  * <code>
@@ -82,14 +136,28 @@ import org.apache.tools.ant.taskdefs.MatchingTask;
 public class SearchReplace extends MatchingTask {
 
     private static final String FAIL_MSG
-        = "Hotswap failed; changes to class(es) might not be compatible with replacement on your VM.";
+        = "Search and replace failed.";
+	// how much of a file is read at once to be scanned
+	private static final int SCAN_WINDOW = 1024*1024;
 
     private boolean verbose = false;
     private boolean failonerror = true;
 
 	protected String find;
 	protected String replace;
+	protected String encoding;
+	protected File replacementFile;
+	protected boolean regex = false;
+	protected int maxMatch = 1024;
     protected Vector filesets = new Vector();
+    protected Vector replacements = new Vector();
+
+	private int threads = 0;
+
+	// built from the strings to replace for each execution
+	private Replacer replacer;
+	// the files to process, each one once
+	private Set<File> files;
 
     /**
      * SearchReplace task for compilation of Java files.
@@ -144,6 +212,47 @@ public class SearchReplace extends MatchingTask {
         this.replace = replace;
     }
 
+    /**
+     * Sets the encoding find and replace are written in, in the files.
+     * @param encoding the name of the charset; defaults to the platform encoding
+     */
+    public void setEncoding(String encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * Sets a properties file of strings to replace, as <code>find=replace</code>.
+     * @param replacementFile the properties file, read with the encoding
+     */
+    public void setReplacementFile(File replacementFile) {
+        this.replacementFile = replacementFile;
+    }
+
+    /**
+     * Sets whether find is a regular expression.
+     * @param regex true to search a regular expression
+     */
+    public void setRegex(boolean regex) {
+        this.regex = regex;
+    }
+
+    /**
+     * Sets how many characters a match of the regular expression is long at most.
+     * @param maxMatch the maximum length of a match
+     */
+    public void setMaxMatch(int maxMatch) {
+        this.maxMatch = maxMatch;
+    }
+
+    /**
+     * Sets how many files are processed at the same time.
+     * Defaults to the number of cores.
+     * @param threads the number of threads processing the files
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
     /**
      * If false, note errors but continue.
      *
@@ -153,6 +262,33 @@ public class SearchReplace extends MatchingTask {
          this.failonerror = failonerror;
      }
 
+	/**
+	 * Adds a string to replace, besides <b>find</b>.
+	 * @return the replacement to configure
+	 */
+	public Replacement createReplacement() {
+		Replacement replacement = new Replacement();
+		replacements.addElement(replacement);
+		return replacement;
+	}
+
+	/**
+	 * A string to replace, and what to replace it with, given as a nested
+	 * <replacement> element.
+	 */
+	public static class Replacement {
+		private String find;
+		private String replace;
+
+		public void setFind(String find) {
+			this.find = find;
+		}
+
+		public void setReplace(String replace) {
+			this.replace = replace;
+		}
+	}
+
 	/**
 	 * Adds a set of files to be deployed.
 	 * @param set the set of files to be deployed
@@ -169,7 +305,9 @@ public class SearchReplace extends MatchingTask {
         checkParameters();
 
 		try {
-			// load classes and replace them on target VM
+			replacer = createReplacer(encoding == null ? Charset.defaultCharset() : Charset.forName(encoding));
+			files = new LinkedHashSet<File>();
+			// collect the files, then process them all together
         	for (int i = 0; i < filesets.size(); i++) {
             	FileSet fs = (FileSet) filesets.elementAt(i);
 				try {
@@ -187,6 +325,7 @@ public class SearchReplace extends MatchingTask {
 					}
 				}
 			}
+			processFiles();
 		} catch (Exception ex) {
 			if (failonerror) {
 				throw new BuildException(ex);
@@ -211,24 +350,106 @@ public class SearchReplace extends MatchingTask {
                                      + "must be set.");
         }
 
-        if ((find == null) && (replace == null)) {
-            throw new BuildException("find is null or replace is null");
+        if ((find == null) && replacements.isEmpty() && (replacementFile == null)) {
+            throw new BuildException("find is null, and there is no replacement");
+        }
+
+        if ((find != null) && (find.length() == 0)) {
+            throw new BuildException("find is empty");
+        }
+
+        for (int i = 0; i < replacements.size(); i++) {
+            Replacement replacement = (Replacement) replacements.elementAt(i);
+            if ((replacement.find == null) || (replacement.find.length() == 0)) {
+                throw new BuildException("a replacement has no find");
+            }
+        }
+
+        if ((encoding != null) && !Charset.isSupported(encoding)) {
+            throw new BuildException("unsupported encoding " + encoding);
+        }
+
+        if (regex) {
+            if ((find == null) || !replacements.isEmpty() || (replacementFile != null)) {
+                throw new BuildException("a regex is given by find only");
+            }
+            if (maxMatch <= 0) {
+                throw new BuildException("maxmatch must be positive");
+            }
+            try {
+                Pattern.compile(find);
+            } catch (PatternSyntaxException pse) {
+                throw new BuildException("invalid regex: " + pse.getMessage());
+            }
         }
     }
 
+	/**
+	 * Builds the engine for the strings to replace: a single string is searched on
+	 * its own, several with one automaton, and a regex through a sliding window.
+	 */
+	private Replacer createReplacer(Charset charset) throws Exception {
+		if (regex) {
+			try {
+				return new RegexReplacer(Pattern.compile(find), replace == null ? "" : replace, charset, maxMatch);
+			} catch (IllegalArgumentException iae) {
+				throw new BuildException(iae.getMessage());
+			}
+		}
+		Map<String, String> pairs = new LinkedHashMap<String, String>();
+		if (find != null)
+			pairs.put(find, replace == null ? "" : replace);
+		for (int i = 0; i < replacements.size(); i++) {
+			Replacement replacement = (Replacement) replacements.elementAt(i);
+			if (!pairs.containsKey(replacement.find))
+				pairs.put(replacement.find, replacement.replace == null ? "" : replacement.replace);
+		}
+		if (replacementFile != null) {
+			Properties properties = new Properties();
+			Reader in = new InputStreamReader(new FileInputStream(replacementFile), charset);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+			for (String key : properties.stringPropertyNames()) {
+				if (key.length() == 0)
+					throw new BuildException("empty string to find in " + replacementFile);
+				if (!pairs.containsKey(key))
+					pairs.put(key, properties.getProperty(key));
+			}
+		}
+		if (pairs.isEmpty())
+			throw new BuildException("no string to replace in " + replacementFile);
+		if (verbose)
+			log("replacing " + pairs.size() + " strings");
+
+		if (pairs.size() == 1) {
+			Map.Entry<String, String> pair = pairs.entrySet().iterator().next();
+			return new StreamReplacer(pair.getKey().getBytes(charset), pair.getValue().getBytes(charset));
+		}
+		List<byte[]> finds = new ArrayList<byte[]>(pairs.size());
+		List<byte[]> replaces = new ArrayList<byte[]>(pairs.size());
+		for (Map.Entry<String, String> pair : pairs.entrySet()) {
+			finds.add(pair.getKey().getBytes(charset));
+			replaces.add(pair.getValue().getBytes(charset));
+		}
+		return new MultiReplacer(finds, replaces);
+	}
+
     /**
-     * remove an array of files in a directory, and a list of subdirectories
-     * which will only be deleted if 'includeEmpty' is true
+     * collect an array of files in a directory, and the files of a list of
+     * subdirectories, to be searched
      * @param d directory to work from
-     * @param files array of files to delete; can be of zero length
-     * @param dirs array of directories to delete; can of zero length
+     * @param files array of files to search; can be of zero length
+     * @param dirs array of directories to search; can of zero length
      */
     protected void searchFiles(File d, String[] files, String[] dirs) throws Exception {
         if (files.length > 0) {
             log("searching " + files.length + " files from "
                 + d.getAbsolutePath());
             for (int j = 0; j < files.length; j++) {
-				processFile(d, files[j], find, replace);
+				collectFile(d, files[j]);
             }
         }
 
@@ -237,10 +458,9 @@ public class SearchReplace extends MatchingTask {
             for (int j = dirs.length - 1; j >= 0; j--) {
  				log("swapping dir " + d.getAbsolutePath() +", "+ dirs[j]);
 				processDirectory(d, dirs[j]);
-//                dirCount++;
+                dirCount++;
             }
 
-			// TODO: need an accurate count?
             if (dirCount > 0) {
                 log("searched " + dirCount + " director"
                     + (dirCount == 1 ? "y" : "ies")
@@ -256,7 +476,7 @@ public class SearchReplace extends MatchingTask {
 				processDirectory(d, getClassOrPackage(d, files[i]));
 			}
 			else {
-				processFile(d, getClassOrPackage(d, files[i]), find, replace);
+				collectFile(d, getClassOrPackage(d, files[i]));
 			}
 		}
 	}
@@ -265,57 +485,180 @@ public class SearchReplace extends MatchingTask {
 		return fileOrDir.getAbsolutePath().substring(baseDir.getAbsolutePath().length()+1);
 	}
 
-	private void processFile(File d, String file, String find, String replace) throws Exception {
-        boolean foundOne = false;
-		File f = new File(d, file);
-		if (verbose)
-			log("searching " + f.getPath());
-
-        FileInputStream in = new FileInputStream(f);
-        File tmpFile = File.createTempFile("antSR", "tmp", new File("."));
-        BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(tmpFile), 4096);
+	private void collectFile(File d, String file) {
+		files.add(new File(d, file));
+	}
 
-		byte [] buffer = new byte [16*1024];
-		int count = in.read(buffer);
-        int len = find.length();
-        String rem = "";
-		while (count != -1) {
-			if (count > 0) {
-                String buf = rem + new String(buffer, 0, count);
-                int idx = buf.indexOf(find);
-                while (idx > -1) {
-                    out.write(buf.getBytes(), 0, idx);
-                    out.write(replace.getBytes());
-                    buf = buf.substring(idx+len);
-//                    System.err.println("found string... text after find : "+buf);
-                    idx = buf.indexOf(find);
-                    foundOne = true;
-                }
-                if (buf.length() > len) {
-                    out.write(buf.getBytes(), 0, buf.length() - len+1);
-                    rem = buf.substring(buf.length() - (len-1));
-                }
-                else {
-                    rem = buf;
-                }
+	/**
+	 * What became of a file.
+	 */
+	private static class FileResult {
+		private long count;
+		private List<String> messages = new ArrayList<String>();
+		private Exception error;
+	}
 
-            }
+	/**
+	 * Processes the collected files on a work stealing pool, and logs what became of
+	 * them in the order they were collected, each file as soon as it and the files
+	 * before it are done.
+	 */
+	private void processFiles() throws Exception {
+		int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		ForkJoinPool pool = poolSize > 1 && files.size() > 1 ? new ForkJoinPool(poolSize) : null;
+		List<FutureTask<FileResult>> tasks = new ArrayList<FutureTask<FileResult>>(files.size());
+		for (final File f : files) {
+			FutureTask<FileResult> task = new FutureTask<FileResult>(new Callable<FileResult>() {
+				public FileResult call() {
+					FileResult result = new FileResult();
+					try {
+						result.count = processFile(f, result.messages);
+					} catch (Exception ex) {
+						result.error = ex;
+					}
+					return result;
+				}
+			});
+			tasks.add(task);
+			if (pool != null)
+				pool.execute(task);
+		}
 
-			count = in.read(buffer);
+		long occurrences = 0;
+		int changed = 0;
+		int failed = 0;
+		Exception first = null;
+		try {
+			for (int i = 0; i < tasks.size(); i++) {
+				FutureTask<FileResult> task = tasks.get(i);
+				tasks.set(i, null);
+				if (pool == null && first == null)
+					task.run();
+				if (task.isCancelled())
+					continue;
+				FileResult result = task.get();
+				for (String message : result.messages)
+					log(message);
+				if (result.error != null) {
+					failed++;
+					if (failonerror) {
+						log(result.error.getMessage(), Project.MSG_ERR);
+						if (first == null) {
+							first = result.error;
+							// the files in progress go on, the others aren't started
+							for (int j = i + 1; j < tasks.size(); j++)
+								tasks.get(j).cancel(false);
+						}
+					} else {
+						log(FAIL_MSG);
+						log(result.error.getMessage());
+					}
+				}
+				else if (result.count > 0) {
+					occurrences += result.count;
+					changed++;
+				}
+			}
+		} finally {
+			if (pool != null)
+				pool.shutdown();
 		}
-        out.write(rem.getBytes());
+		log("replaced " + occurrences + " occurrences in " + changed + " of " + files.size() + " files"
+			+ (failed > 0 ? ", " + failed + " failed" : ""));
+		if (first != null)
+			throw first;
+	}
 
-		in.close();
-		out.flush();
-		out.close();
+	/**
+	 * Replaces the occurrences in a file. This runs on the threads of the pool, so
+	 * the messages are handed back to be logged rather than logged here.
+	 * <p/>
+	 * The file is scanned first, and left alone unless it holds an occurrence.
+	 * Otherwise it is read again into a temporary file of the same directory, which
+	 * is then moved over it.
+	 * @return the number of occurrences replaced
+	 */
+	private long processFile(File f, List<String> messages) throws Exception {
+		if (verbose)
+			messages.add("searching " + f.getPath());
 
-        if (foundOne) {
-            // now, remove old, and replace with edited version.
-            f.delete();
-            tmpFile.renameTo(f);
-        }
-        else {
-            tmpFile.delete();
-        }
+		long count = 0;
+		File tmpFile = null;
+		try {
+			FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+			try {
+				if (!scan(channel))
+					return 0;
+				// the scan left the channel where it stopped
+				channel.position(0);
+				InputStream in = Channels.newInputStream(channel);
+				tmpFile = File.createTempFile("antSR", "tmp", f.getAbsoluteFile().getParentFile());
+				OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmpFile.toPath()), 64*1024);
+				try {
+					count = replacer.replace(in, out);
+				} finally {
+					out.close();
+				}
+			} finally {
+				channel.close();
+			}
+
+			if (count > 0) {
+				if (verbose)
+					messages.add("replaced " + count + " occurrences in " + f.getPath());
+				// now, replace the old version with the edited one.
+				try {
+					Files.move(tmpFile.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(tmpFile.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+		} catch (CharacterCodingException e) {
+			// only a regex decodes the files
+			throw new IOException(f.getPath() + " is not "
+				+ (encoding == null ? Charset.defaultCharset().name() : encoding) + " text", e);
+		} finally {
+			if (tmpFile != null)
+				Files.deleteIfExists(tmpFile.toPath());
+		}
+		return count;
+	}
+
+	/**
+	 * Tells whether a file holds an occurrence, reading it in windows of at most
+	 * SCAN_WINDOW bytes into a buffer used for them all. Each window takes over the
+	 * last bytes of the one before, as many as an occurrence may span less one, so
+	 * that none is missed between them.
+	 */
+	private boolean scan(FileChannel channel) throws IOException {
+		long size = channel.size();
+		long overlap = replacer.overlap();
+		if (size > SCAN_WINDOW && overlap > SCAN_WINDOW / 2) {
+			// the windows would hardly move, it is as fast to rewrite the file
+			return true;
+		}
+		ByteBuffer bytes = ByteBuffer.allocate((int) Math.min(size + 1, SCAN_WINDOW));
+		// the calls through Buffer don't need the covariant overrides of Java 9
+		Buffer buffer = bytes;
+		boolean eof = false;
+		while (!eof) {
+			while (bytes.hasRemaining()) {
+				if (channel.read(bytes) == -1) {
+					eof = true;
+					break;
+				}
+			}
+			buffer.flip();
+			if (replacer.matches(bytes))
+				return true;
+			if (!eof) {
+				// the file grew past what was kept for it
+				if (overlap >= buffer.limit())
+					return true;
+				buffer.position((int) (buffer.limit() - overlap));
+				bytes.compact();
+			}
+		}
+		return false;
 	}
 }
@@ -0,0 +1,125 @@
+/*
+ * Copyright  2000-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dak.ant.taskdefs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Replaces every occurrence of a byte sequence in a stream, in a single pass over
+ * the bytes (Knuth-Morris-Pratt), whatever the number of matches. The bytes of a
+ * possible match are always a prefix of the searched sequence, so a match spanning
+ * two reads needs no buffering, and nothing is allocated per match. Occurrences
+ * don't overlap: the search goes on after the end of each one.
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+class StreamReplacer implements Replacer {
+	private static final int BUFFER_SIZE = 64*1024;
+
+	private final byte [] find;
+	private final byte [] replace;
+	// length of the longest proper prefix of find[0..q] which is also a suffix of it
+	private final int [] border;
+
+	StreamReplacer(byte [] find, byte [] replace) {
+		if (find.length == 0)
+			throw new IllegalArgumentException("nothing to find");
+		this.find = find;
+		this.replace = replace;
+		border = new int[find.length];
+		for (int q=1, k=0; q<find.length; q++) {
+			while (k > 0 && find[q] != find[k])
+				k = border[k-1];
+			if (find[q] == find[k])
+				k++;
+			border[q] = k;
+		}
+	}
+
+	public long replace(InputStream in, OutputStream out) throws IOException {
+		byte [] buffer = new byte[BUFFER_SIZE];
+		int len = find.length;
+		byte first = find[0];
+		long count = 0;
+		// the length of the match in progress: find[0..matched) is pending, not written yet
+		int matched = 0;
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			// buffer[start..] is not written yet; the pending bytes start at i-matched,
+			// which is negative when they started in a previous read
+			int start = 0;
+			int i = 0;
+			while (i < n) {
+				if (matched == 0) {
+					while (i < n && buffer[i] != first)
+						i++;
+					if (i == n)
+						break;
+					matched = 1;
+					i++;
+				}
+				else if (buffer[i] == find[matched]) {
+					matched++;
+					i++;
+				}
+				else {
+					// fall back to the longest border: the bytes before it aren't a match
+					int k = border[matched-1];
+					if (matched > i) {
+						// those of them read before this buffer are only in find
+						out.write(find, 0, Math.min(matched - k, matched - i));
+					}
+					matched = k;
+					continue;
+				}
+				if (matched == len) {
+					if (i - len > start)
+						out.write(buffer, start, i - len - start);
+					out.write(replace);
+					start = i;
+					matched = 0;
+					count++;
+				}
+			}
+			if (n - matched > start)
+				out.write(buffer, start, n - matched - start);
+		}
+		out.write(find, 0, matched);
+		return count;
+	}
+
+	public long overlap() {
+		return find.length - 1;
+	}
+
+	public boolean matches(ByteBuffer bytes) {
+		int len = find.length;
+		int matched = 0;
+		for (int i=0, n=bytes.limit(); i<n; i++) {
+			byte b = bytes.get(i);
+			while (matched > 0 && b != find[matched])
+				matched = border[matched-1];
+			if (b == find[matched] && ++matched == len)
+				return true;
+		}
+		return false;
+	}
+}
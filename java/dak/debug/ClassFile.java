@@ -0,0 +1,269 @@
+
+package dak.debug;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A minimal class file reader, used to look at the classes before sending them to the VM.
+ * It computes a canonical digest of the class which leaves out the debug attributes
+ * (LineNumberTable, LocalVariableTable, LocalVariableTypeTable, SourceFile and
+ * SourceDebugExtension), so that a class which only moved around in its source file
+ * is seen as unchanged. The constant pool is part of the digest as it is.
+ * <p/>
+ * It also keeps the outline of the class (supertypes, fields and methods), which
+ * {@link ClassSchema} compares with the class running in the VM.
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+public class ClassFile {
+	private static final int MAGIC = 0xCAFEBABE;
+
+	private final String name;
+	private final String canonicalDigest;
+	private final int access;
+	private final String superName;
+	private final List<String> interfaces = new ArrayList<String>();
+	private final List<Member> fields = new ArrayList<Member>();
+	private final List<Member> methods = new ArrayList<Member>();
+
+	private String [] utf8;
+	private int [] classNameIndex;
+	private byte [] bytes;
+	private DataInputStream in;
+	private MessageDigest md;
+
+	private ClassFile(byte [] classBytes) throws IOException {
+		bytes = classBytes;
+		in = new DataInputStream(new ByteArrayInputStream(classBytes));
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		if (in.readInt() != MAGIC)
+			throw new IOException("not a class file");
+		copy(4);	// minor, major version
+		readConstantPool();
+
+		access = copyShort();
+		name = className(copyShort());
+		superName = className(copyShort());
+		int count = copyShort();
+		for (int i=0; i<count; i++) {
+			interfaces.add(className(copyShort()));
+		}
+		readMembers(fields);
+		readMembers(methods);
+		readAttributes();
+
+		canonicalDigest = DigestCache.toHex(md.digest());
+		bytes = null;
+		in = null;
+		md = null;
+	}
+
+	/**
+	 * Parses the class file bytes.
+	 * @throws IOException if the bytes are not a well formed class file
+	 */
+	public static ClassFile parse(byte [] classBytes) throws IOException {
+		return new ClassFile(classBytes);
+	}
+
+	/**
+	 * @return the binary name of the class, with dots as package separators
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the hex encoded digest of the class, without its debug attributes
+	 */
+	public String getCanonicalDigest() {
+		return canonicalDigest;
+	}
+
+	/**
+	 * @return the access flags of the class
+	 */
+	public int getAccess() {
+		return access;
+	}
+
+	/**
+	 * @return the name of the super class, null for java.lang.Object
+	 */
+	public String getSuperName() {
+		return superName;
+	}
+
+	/**
+	 * @return the names of the interfaces directly implemented
+	 */
+	public List<String> getInterfaces() {
+		return interfaces;
+	}
+
+	/**
+	 * @return the fields declared by the class
+	 */
+	public List<Member> getFields() {
+		return fields;
+	}
+
+	/**
+	 * @return the methods declared by the class, constructors included
+	 */
+	public List<Member> getMethods() {
+		return methods;
+	}
+
+	/**
+	 * A field or a method: its access flags, name and descriptor.
+	 */
+	public static class Member {
+		public final int access;
+		public final String name;
+		public final String descriptor;
+
+		public Member(int access, String name, String descriptor) {
+			this.access = access;
+			this.name = name;
+			this.descriptor = descriptor;
+		}
+	}
+
+	private String className(int index) {
+		if (index == 0)
+			return null;
+		return utf8[classNameIndex[index]].replace('/', '.');
+	}
+
+	private void readConstantPool() throws IOException {
+		int start = position();
+		int count = in.readUnsignedShort();
+		utf8 = new String[count];
+		classNameIndex = new int[count];
+		for (int i=1; i<count; i++) {
+			int tag = in.readUnsignedByte();
+			switch (tag) {
+				case 1:		// Utf8
+					utf8[i] = in.readUTF();
+					break;
+				case 7:		// Class
+					classNameIndex[i] = in.readUnsignedShort();
+					break;
+				case 8:		// String
+				case 16:	// MethodType
+				case 19:	// Module
+				case 20:	// Package
+					in.skipBytes(2);
+					break;
+				case 15:	// MethodHandle
+					in.skipBytes(3);
+					break;
+				case 3:		// Integer
+				case 4:		// Float
+				case 9:		// Fieldref
+				case 10:	// Methodref
+				case 11:	// InterfaceMethodref
+				case 12:	// NameAndType
+				case 17:	// Dynamic
+				case 18:	// InvokeDynamic
+					in.skipBytes(4);
+					break;
+				case 5:		// Long
+				case 6:		// Double
+					in.skipBytes(8);
+					i++;	// takes two entries
+					break;
+				default:
+					throw new IOException("unknown constant pool tag " + tag);
+			}
+		}
+		// the pool goes to the digest untouched
+		md.update(bytes, start, position() - start);
+	}
+
+	private void readMembers(List<Member> members) throws IOException {
+		int count = copyShort();
+		for (int i=0; i<count; i++) {
+			int memberAccess = copyShort();
+			String memberName = utf8[copyShort()];
+			String descriptor = utf8[copyShort()];
+			members.add(new Member(memberAccess, memberName, descriptor));
+			readAttributes();
+		}
+	}
+
+	private void readAttributes() throws IOException {
+		int count = in.readUnsignedShort();
+		for (int i=0; i<count; i++) {
+			int nameIndex = in.readUnsignedShort();
+			int length = in.readInt();
+			String attrName = utf8[nameIndex];
+			if (isDebugAttribute(attrName)) {
+				in.skipBytes(length);
+			}
+			else if ("Code".equals(attrName)) {
+				md.update((byte)'C');
+				copy(4);	// max stack, max locals
+				int codeLength = copyInt();
+				copy(codeLength);
+				int handlers = copyShort();
+				copy(handlers*8);
+				readAttributes();
+			}
+			else {
+				updateShort(nameIndex);
+				copy(length);
+			}
+		}
+		md.update((byte)'.');
+	}
+
+	private static boolean isDebugAttribute(String attrName) {
+		return "LineNumberTable".equals(attrName)
+			|| "LocalVariableTable".equals(attrName)
+			|| "LocalVariableTypeTable".equals(attrName)
+			|| "SourceFile".equals(attrName)
+			|| "SourceDebugExtension".equals(attrName);
+	}
+
+	private int copyShort() throws IOException {
+		int ret = in.readUnsignedShort();
+		updateShort(ret);
+		return ret;
+	}
+
+	private int copyInt() throws IOException {
+		int ret = in.readInt();
+		updateShort(ret >>> 16);
+		updateShort(ret);
+		return ret;
+	}
+
+	private void updateShort(int value) {
+		md.update((byte)(value >> 8));
+		md.update((byte)value);
+	}
+
+	private void copy(int length) throws IOException {
+		int pos = position();
+		if (in.skipBytes(length) != length)
+			throw new IOException("truncated class file");
+		md.update(bytes, pos, length);
+	}
+
+	private int position() throws IOException {
+		return bytes.length - in.available();
+	}
+}
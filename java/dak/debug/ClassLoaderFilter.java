@@ -0,0 +1,86 @@
+
+package dak.debug;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Selects the class loaders whose classes get replaced, when a class is loaded by
+ * several of them (a container running several applications). The filter is a
+ * comma separated list of patterns, a loader being selected when one of them matches:
+ * <ul>
+ * <li/><code>class:org.apache.catalina.loader.ParallelWebappClassLoader</code> - the
+ * class of the loader
+ * <li/><code>name:app</code> - the name of the loader (Java 9 and later)
+ * <li/><code>codesource:webapps/shop/</code> - a part of the location the classes
+ * come from
+ * <li/>anything else matches any of the three
+ * </ul>
+ * The code source is found on a best effort basis: from the class path of the loader
+ * through JDWP, or from the class itself inside the VM.
+ * <p/>
+ * This class is also loaded in the target VM along with {@link HotSwapAgent}, so it
+ * must not depend on JDI.
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+public class ClassLoaderFilter {
+	private static final String CLASS = "class:";
+	private static final String NAME = "name:";
+	private static final String CODE_SOURCE = "codesource:";
+
+	private final String spec;
+	private final List<String> patterns = new ArrayList<String>();
+
+	public ClassLoaderFilter(String spec) {
+		this.spec = spec;
+		String [] parts = spec.split(",");
+		for (int i=0; i<parts.length; i++) {
+			String pattern = parts[i].trim();
+			if (pattern.length() > 0)
+				patterns.add(pattern);
+		}
+		if (patterns.isEmpty())
+			throw new IllegalArgumentException("empty class loader filter");
+	}
+
+	/**
+	 * @param loaderClass the class name of the loader
+	 * @param loaderName the name of the loader, may be null
+	 * @param codeSources the locations the classes of the loader come from, may be empty
+	 * @return true if the classes of the loader are to be replaced
+	 */
+	public boolean matches(String loaderClass, String loaderName, Collection<String> codeSources) {
+		for (String pattern : patterns) {
+			if (pattern.startsWith(CLASS)) {
+				if (pattern.substring(CLASS.length()).equals(loaderClass))
+					return true;
+			}
+			else if (pattern.startsWith(NAME)) {
+				if (pattern.substring(NAME.length()).equals(loaderName))
+					return true;
+			}
+			else if (pattern.startsWith(CODE_SOURCE)) {
+				if (contains(codeSources, pattern.substring(CODE_SOURCE.length())))
+					return true;
+			}
+			else if (pattern.equals(loaderClass) || pattern.equals(loaderName) || contains(codeSources, pattern)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean contains(Collection<String> codeSources, String part) {
+		for (String codeSource : codeSources) {
+			if (codeSource != null && codeSource.contains(part))
+				return true;
+		}
+		return false;
+	}
+
+	public String toString() {
+		return spec;
+	}
+}
@@ -0,0 +1,155 @@
+
+package dak.debug;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.jdi.ClassType;
+import com.sun.jdi.Field;
+import com.sun.jdi.InterfaceType;
+import com.sun.jdi.Method;
+import com.sun.jdi.ReferenceType;
+
+/**
+ * The parts of a class that a redefinition may not change: its modifiers, its
+ * supertypes, its fields and its methods, with their modifiers. Comparing the schema of the new
+ * class with the one of the running class tells beforehand that the VM will
+ * reject the new class, without a round trip.
+ * <p/>
+ * The checks are those all VMs enforce. Where VMs differ (adding or removing
+ * private static or final methods), the change is let through for the VM to decide.
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+public class ClassSchema {
+	// final, interface, abstract, annotation, enum: the same in a class file and in
+	// the InnerClasses entry of a nested class, which is what the VM reports for it
+	private static final int CLASS_MODIFIERS = 0x6610;
+	// public, private, protected, static, final, volatile, transient
+	private static final int FIELD_MODIFIERS = 0x00DF;
+	// public, private, protected, static, final, synchronized, abstract
+	private static final int METHOD_MODIFIERS = 0x043F;
+	private static final int ACC_PUBLIC = 0x0001;
+	private static final int ACC_PRIVATE = 0x0002;
+	private static final int ACC_STATIC = 0x0008;
+	private static final int ACC_FINAL = 0x0010;
+	private static final int ACC_INTERFACE = 0x0200;
+
+	private final int modifiers;
+	private final boolean isInterface;
+	private final String superName;
+	private final List<String> interfaces;
+	private final Map<String, Integer> fields = new HashMap<String, Integer>();
+	private final Map<String, Integer> methods = new HashMap<String, Integer>();
+
+	/**
+	 * The schema of the class in a class file.
+	 */
+	public ClassSchema(ClassFile classFile) {
+		modifiers = classModifiers(classFile.getName(), classFile.getAccess());
+		isInterface = (classFile.getAccess() & ACC_INTERFACE) != 0;
+		superName = isInterface ? null : classFile.getSuperName();
+		interfaces = classFile.getInterfaces();
+		for (ClassFile.Member field : classFile.getFields()) {
+			fields.put(field.name + " " + field.descriptor, Integer.valueOf(field.access & FIELD_MODIFIERS));
+		}
+		for (ClassFile.Member method : classFile.getMethods()) {
+			methods.put(method.name + method.descriptor, Integer.valueOf(method.access & METHOD_MODIFIERS));
+		}
+	}
+
+	/**
+	 * The schema of a class loaded in the VM. This costs a few round trips the first
+	 * time, as the fields and methods of the type are fetched.
+	 */
+	public ClassSchema(ReferenceType type) {
+		modifiers = classModifiers(type.name(), type.modifiers());
+		isInterface = type instanceof InterfaceType;
+		interfaces = new ArrayList<String>();
+		List supers;
+		if (type instanceof ClassType) {
+			ClassType superclass = ((ClassType)type).superclass();
+			superName = superclass == null ? null : superclass.name();
+			supers = ((ClassType)type).interfaces();
+		}
+		else {
+			superName = null;
+			supers = ((InterfaceType)type).superinterfaces();
+		}
+		for (int i=0; i<supers.size(); i++) {
+			interfaces.add(((ReferenceType)supers.get(i)).name());
+		}
+		List declared = type.fields();
+		for (int i=0; i<declared.size(); i++) {
+			Field field = (Field)declared.get(i);
+			fields.put(field.name() + " " + field.signature(), Integer.valueOf(field.modifiers() & FIELD_MODIFIERS));
+		}
+		declared = type.methods();
+		for (int i=0; i<declared.size(); i++) {
+			Method method = (Method)declared.get(i);
+			methods.put(method.name() + method.signature(), Integer.valueOf(method.modifiers() & METHOD_MODIFIERS));
+		}
+	}
+
+	/**
+	 * Tells why the running class can't be replaced by the new one.
+	 * @param newer the schema of the new class
+	 * @return the first incompatible change found, or null if there is none
+	 */
+	public String incompatibleChange(ClassSchema newer) {
+		if (isInterface != newer.isInterface)
+			return isInterface ? "interface changed to class" : "class changed to interface";
+		if (modifiers != newer.modifiers)
+			return "class modifiers changed from \"" + Modifier.toString(modifiers)
+				+ "\" to \"" + Modifier.toString(newer.modifiers) + "\"";
+		if (superName == null ? newer.superName != null : !superName.equals(newer.superName))
+			return "super class changed from " + superName + " to " + newer.superName;
+		if (!interfaces.equals(newer.interfaces))
+			return "interfaces changed from " + interfaces + " to " + newer.interfaces;
+
+		for (Map.Entry<String, Integer> field : fields.entrySet()) {
+			Integer modifiers = newer.fields.get(field.getKey());
+			if (modifiers == null)
+				return "field removed: " + field.getKey();
+			if (!modifiers.equals(field.getValue()))
+				return "field modifiers changed: " + field.getKey();
+		}
+		for (String field : newer.fields.keySet()) {
+			if (!fields.containsKey(field))
+				return "field added: " + field;
+		}
+
+		for (Map.Entry<String, Integer> method : methods.entrySet()) {
+			Integer modifiers = newer.methods.get(method.getKey());
+			if (modifiers == null) {
+				if (!isPrivateStaticOrFinal(method.getValue()))
+					return "method removed: " + method.getKey();
+			}
+			else if (!modifiers.equals(method.getValue())) {
+				return "method modifiers changed: " + method.getKey();
+			}
+		}
+		for (Map.Entry<String, Integer> method : newer.methods.entrySet()) {
+			if (!methods.containsKey(method.getKey()) && !isPrivateStaticOrFinal(method.getValue()))
+				return "method added: " + method.getKey();
+		}
+		return null;
+	}
+
+	/**
+	 * The modifiers of a class both sides agree on. For a nested class, public
+	 * stands in the class file for a visibility which the VM reports as declared
+	 * instead, so it is only compared for top level classes, whose names have no '$'.
+	 */
+	private static int classModifiers(String name, int access) {
+		return access & (name.indexOf('$') < 0 ? CLASS_MODIFIERS | ACC_PUBLIC : CLASS_MODIFIERS);
+	}
+
+	private static boolean isPrivateStaticOrFinal(Integer modifiers) {
+		int flags = modifiers.intValue();
+		return (flags & ACC_PRIVATE) != 0 && (flags & (ACC_STATIC | ACC_FINAL)) != 0;
+	}
+}
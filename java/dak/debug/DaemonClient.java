@@ -0,0 +1,174 @@
+
+package dak.debug;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Client side of the protocol served by {@link HotSwapDaemon} and {@link HotSwapAgent}
+ * (see {@link TransportServer}).
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+class DaemonClient implements SwapTransport {
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private final String peer;
+
+	/**
+	 * Connects to the daemon listening on the port, with the token it wrote for
+	 * the clients of its user.
+	 */
+	DaemonClient(int port) throws Exception {
+		this(port, "hotswap daemon", HotSwapDaemon.readToken(port));
+	}
+
+	/**
+	 * @param peer what is listening on the port, for the error messages
+	 * @param token the token to be let in with
+	 */
+	DaemonClient(int port, String peer, String token) throws Exception {
+		this.peer = peer;
+		socket = new Socket(InetAddress.getByName(null), port);
+		socket.setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		try {
+			out.writeUTF(token);
+			reply();
+		} catch (Exception e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	public synchronized Set<String> findLoaded(Collection<String> classNames) throws Exception {
+		out.writeByte(TransportServer.IS_LOADED);
+		out.writeInt(classNames.size());
+		for (String className : classNames) {
+			out.writeUTF(className);
+		}
+		reply();
+		Set<String> ret = new LinkedHashSet<String>();
+		for (String className : classNames) {
+			if (in.readBoolean())
+				ret.add(className);
+		}
+		return ret;
+	}
+
+	public synchronized void replace(Map<String, byte[]> classes) throws Exception {
+		out.writeByte(TransportServer.REPLACE);
+		out.writeInt(classes.size());
+		for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeInt(entry.getValue().length);
+			out.write(entry.getValue());
+		}
+		reply();
+	}
+
+	public synchronized void replaceOnLoad(String className, File classFile) throws Exception {
+		out.writeByte(TransportServer.REPLACE_ON_LOAD);
+		out.writeUTF(className);
+		out.writeUTF(classFile.getAbsolutePath());
+		reply();
+	}
+
+	public synchronized Map<String, byte[]> fetch(Collection<String> classNames) throws Exception {
+		out.writeByte(TransportServer.FETCH);
+		out.writeInt(classNames.size());
+		for (String className : classNames) {
+			out.writeUTF(className);
+		}
+		reply();
+		Map<String, byte[]> ret = new LinkedHashMap<String, byte[]>();
+		int count = in.readInt();
+		for (int i=0; i<count; i++) {
+			String className = in.readUTF();
+			byte [] classBytes = new byte[in.readInt()];
+			in.readFully(classBytes);
+			ret.put(className, classBytes);
+		}
+		return ret;
+	}
+
+	public synchronized int rollback() throws Exception {
+		out.writeByte(TransportServer.ROLLBACK);
+		reply();
+		return in.readInt();
+	}
+
+	public synchronized void setClassLoaderFilter(String filter) throws Exception {
+		out.writeByte(TransportServer.SET_FILTER);
+		out.writeUTF(filter == null ? "" : filter);
+		reply();
+	}
+
+	public synchronized void close() throws IOException {
+		send(TransportServer.CLOSE);
+	}
+
+	/**
+	 * @return the warnings of the daemon or agent since they were last asked for
+	 */
+	synchronized List<String> takeWarnings() throws Exception {
+		out.writeByte(TransportServer.WARNINGS);
+		reply();
+		List<String> ret = new ArrayList<String>();
+		int count = in.readInt();
+		for (int i=0; i<count; i++)
+			ret.add(in.readUTF());
+		return ret;
+	}
+
+	synchronized void shutdown() throws IOException {
+		send(TransportServer.SHUTDOWN);
+	}
+
+	private void send(int request) throws IOException {
+		try {
+			out.writeByte(request);
+			out.flush();
+		} finally {
+			socket.close();
+		}
+	}
+
+	private void reply() throws Exception {
+		out.flush();
+		int status = in.readUnsignedByte();
+		if (status == TransportServer.FAILED) {
+			Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+			int count = in.readInt();
+			for (int i=0; i<count; i++) {
+				String className = in.readUTF();
+				final String message = in.readUTF();
+				failures.put(className, new Exception(message) {
+					public String toString() {
+						return message;
+					}
+				});
+			}
+			throw new HotSwapException(failures);
+		}
+		if (status == TransportServer.ERROR)
+			throw new Exception(peer + ": " + in.readUTF());
+		if (status != TransportServer.OK)
+			throw new IOException("unexpected reply from " + peer + ": " + status);
+	}
+}
@@ -0,0 +1,103 @@
+
+package dak.debug;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * Remembers a digest of the bytes last sent to the VM for each class, so that
+ * classes which did not change since the previous swap need not be redefined
+ * (a redefinition throws away the JIT compiled code of the class).
+ * The digests are kept in a properties file keyed by VM and class name, as each VM
+ * runs the version it last accepted, which a VM missed or rejecting a swap doesn't.
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+public class DigestCache {
+	private static final char [] HEX = "0123456789abcdef".toCharArray();
+
+	private final File file;
+	private final Properties digests = new Properties();
+	private boolean modified = false;
+
+	public DigestCache(File file) throws IOException {
+		this.file = file;
+		if (file.exists()) {
+			InputStream in = new FileInputStream(file);
+			try {
+				digests.load(in);
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * @param target the VM, as the task names it
+	 * @return true if the given digest is the one recorded for the class on the VM
+	 */
+	public boolean isUnchanged(String target, String className, String digest) {
+		return digest.equals(digests.getProperty(key(target, className)));
+	}
+
+	/**
+	 * Records the digest of the bytes now running in the VM for the class.
+	 * @param target the VM, as the task names it
+	 */
+	public void put(String target, String className, String digest) {
+		Object old = digests.setProperty(key(target, className), digest);
+		if (!digest.equals(old))
+			modified = true;
+	}
+
+	private static String key(String target, String className) {
+		return target + " " + className;
+	}
+
+	/**
+	 * Writes the cache back to its file, if anything was recorded.
+	 */
+	public void save() throws IOException {
+		if (!modified)
+			return;
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null)
+			dir.mkdirs();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			digests.store(out, "hotswap class digests");
+		} finally {
+			out.close();
+		}
+		modified = false;
+	}
+
+	/**
+	 * @return the hex encoded SHA-1 digest of the bytes
+	 */
+	public static String digest(byte [] bytes) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		return toHex(md.digest(bytes));
+	}
+
+	static String toHex(byte [] bytes) {
+		char [] ret = new char[bytes.length*2];
+		for (int i=0; i<bytes.length; i++) {
+			ret[i*2] = HEX[(bytes[i] >> 4) & 0xf];
+			ret[i*2+1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(ret);
+	}
+}
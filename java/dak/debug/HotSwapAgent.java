@@ -0,0 +1,401 @@
+
+package dak.debug;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.instrument.ClassDefinition;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A java agent which replaces the classes from inside the VM, with
+ * {@link Instrumentation#redefineClasses(ClassDefinition[])}, so that the VM doesn't
+ * need to run with the JDWP agent. {@link HotSwapHelper#connectAgent(String)} loads it
+ * in a local VM through the Attach API; the agent then listens on a local port, given
+ * by the <code>hotswap.agent.port</code> system property of the VM, and serves the same
+ * requests as the {@link HotSwapDaemon}. Loading it again only returns the port.
+ * <p/>
+ * The port is open to anyone on the machine, so a client must first give a token
+ * handed to the agent when it was loaded: only the processes allowed to attach to
+ * the VM can load it, and each load brings a new token, which lets one connection
+ * in. A client can also stop the agent, which then closes its port; it is started
+ * again by the next load.
+ * <p/>
+ * The agent is loaded in the target VM with only this class, {@link TransportServer},
+ * {@link SwapTransport}, {@link HotSwapException}, {@link ClassLoaderFilter} and
+ * {@link SwapHistory}, none of which depends on JDI.
+ * It doesn't compare the schemas of the classes before replacing them, the VM does.
+ * Classes registered to be replaced when loaded stay registered as long as the agent
+ * runs, rather than as long as the connection.
+ * <p/>
+ * As the daemon does, the agent keeps the versions replaced by the last swaps made
+ * through it in memory, so that they can be rolled back. The versions running before
+ * the first swap of a class are got by retransforming it, which also hands them out
+ * to a {@link HotSwapHelper} keeping its own history.
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+public class HotSwapAgent extends TransportServer implements SwapTransport, ClassFileTransformer, Runnable {
+	static final String PORT_PROPERTY = "hotswap.agent.port";
+	// the tokens kept for the connections to come, beyond which the oldest are dropped
+	private static final int MAX_TOKENS = 16;
+	// the number of swaps which can be rolled back, as with the daemon
+	private static final int HISTORY_SIZE = 5;
+
+	private static HotSwapAgent agent;
+
+	private final Instrumentation inst;
+	private final ServerSocket server;
+	// the tokens which may each let one connection in
+	private final Set<String> tokens = new LinkedHashSet<String>();
+	// class files to load instead of the classes, keyed by internal name
+	private final Map<String, File> deferred = new ConcurrentHashMap<String, File>();
+	// the versions replaced by the swaps made through the agent
+	private final SwapHistory history = new SwapHistory(HISTORY_SIZE);
+	private volatile ClassLoaderFilter loaderFilter;
+	// the classes being fetched, with their bytes once retransformed
+	private volatile Map<Class<?>, byte[]> fetching;
+
+	private HotSwapAgent(Instrumentation inst) throws IOException {
+		this.inst = inst;
+		server = new ServerSocket(0, 50, InetAddress.getByName(null));
+	}
+
+	/**
+	 * Starts the agent, unless it runs already, and lets the next connection in
+	 * with the token given as the arguments.
+	 */
+	public static synchronized void agentmain(String args, Instrumentation inst) throws IOException {
+		if (agent == null) {
+			if (!inst.isRedefineClassesSupported())
+				throw new IllegalStateException("JVM doesn't support class replacement");
+			agent = new HotSwapAgent(inst);
+			inst.addTransformer(agent, inst.isRetransformClassesSupported());
+			Thread thread = new Thread(agent, "hotswap agent");
+			thread.setDaemon(true);
+			thread.start();
+			System.setProperty(PORT_PROPERTY, String.valueOf(agent.server.getLocalPort()));
+		}
+		if (args != null && args.length() > 0)
+			agent.addToken(args);
+	}
+
+	private void addToken(String token) {
+		synchronized (tokens) {
+			tokens.add(token);
+			// those of the clients which never connected
+			Iterator<String> iter = tokens.iterator();
+			while (tokens.size() > MAX_TOKENS) {
+				iter.next();
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Lets a client in with a token handed to the agent, which can't be used again.
+	 */
+	protected String checkToken(String token) {
+		synchronized (tokens) {
+			if (tokens.remove(token))
+				return null;
+		}
+		return "unknown token, load the agent again to get one";
+	}
+
+	public void run() {
+		try {
+			serve(server);
+		} catch (IOException e) {
+			log("hotswap agent stopped: " + e);
+		} finally {
+			synchronized (HotSwapAgent.class) {
+				inst.removeTransformer(this);
+				System.getProperties().remove(PORT_PROPERTY);
+				agent = null;
+			}
+		}
+	}
+
+	protected SwapTransport transport() {
+		return this;
+	}
+
+	public Set<String> findLoaded(Collection<String> classNames) {
+		return loadedClasses(classNames).keySet();
+	}
+
+	/**
+	 * Replaces the classes with a single redefinition. If it is rejected, the classes
+	 * are retried group by group, a group being a top level class with its nested
+	 * classes, as with {@link HotSwapHelper#replace(Map)}. The versions replaced are
+	 * kept to be rolled back.
+	 */
+	public void replace(Map<String, byte[]> classes) throws Exception {
+		Map<String, byte[]> before = previousVersions(classes.keySet());
+		try {
+			send(classes);
+		} catch (HotSwapException e) {
+			record(before, classes, e.getFailures().keySet());
+			throw e;
+		}
+		record(before, classes, Collections.<String>emptySet());
+	}
+
+	/**
+	 * Sends back the classes replaced by the latest swap made through the agent.
+	 */
+	public int rollback() throws Exception {
+		Map<String, byte[]> previous = history.getPrevious();
+		if (previous == null)
+			return 0;
+		Map<String, byte[]> restored = new LinkedHashMap<String, byte[]>(previous);
+		try {
+			send(previous);
+		} catch (HotSwapException e) {
+			removeGroups(restored, e.getFailures().keySet());
+			history.rolledBack(restored);
+			throw e;
+		}
+		history.rolledBack(restored);
+		return restored.size();
+	}
+
+	/**
+	 * The bytes running before the swap: those last sent, else those the VM was
+	 * given.
+	 */
+	private Map<String, byte[]> previousVersions(Collection<String> classNames) {
+		Map<String, byte[]> ret = new HashMap<String, byte[]>();
+		try {
+			List<String> unknown = new ArrayList<String>();
+			for (String className : classNames) {
+				byte [] classBytes = history.getActive(className);
+				if (classBytes != null)
+					ret.put(className, classBytes);
+				else
+					unknown.add(className);
+			}
+			if (!unknown.isEmpty())
+				ret.putAll(fetch(unknown));
+		} catch (Exception e) {
+			warn("previous versions not kept, the swap can't be rolled back (" + e + ")");
+		}
+		return ret;
+	}
+
+	private void record(Map<String, byte[]> before, Map<String, byte[]> classes, Set<String> failedGroups) {
+		Map<String, byte[]> after = new LinkedHashMap<String, byte[]>(classes);
+		removeGroups(after, failedGroups);
+		Map<String, byte[]> previous = new LinkedHashMap<String, byte[]>();
+		for (String className : after.keySet()) {
+			byte [] classBytes = before.get(className);
+			if (classBytes != null)
+				previous.put(className, classBytes);
+		}
+		if (previous.size() < after.size())
+			warn((after.size() - previous.size()) + " classes had no previous version to keep, a rollback leaves them as they are");
+		try {
+			history.record(previous, after);
+		} catch (IOException e) {
+			// only kept in memory
+		}
+	}
+
+	private void send(Map<String, byte[]> classes) throws Exception {
+		Map<String, List<Class<?>>> loaded = loadedClasses(classes.keySet());
+		Map<String, List<ClassDefinition>> groups = new LinkedHashMap<String, List<ClassDefinition>>();
+		List<ClassDefinition> all = new ArrayList<ClassDefinition>();
+		for (Map.Entry<String, List<Class<?>>> entry : loaded.entrySet()) {
+			String group = groupOf(entry.getKey());
+			List<ClassDefinition> definitions = groups.get(group);
+			if (definitions == null) {
+				definitions = new ArrayList<ClassDefinition>();
+				groups.put(group, definitions);
+			}
+			for (Class<?> c : entry.getValue()) {
+				ClassDefinition definition = new ClassDefinition(c, classes.get(entry.getKey()));
+				definitions.add(definition);
+				all.add(definition);
+			}
+		}
+		if (all.isEmpty())
+			return;
+
+		try {
+			redefine(all);
+			return;
+		} catch (Exception e) {
+			// a failed redefinition leaves every class of the batch untouched; a
+			// single group needn't be sent again to be found at fault
+			if (groups.size() == 1)
+				throw new HotSwapException(Collections.singletonMap(groups.keySet().iterator().next(), e));
+		}
+
+		Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+		for (Map.Entry<String, List<ClassDefinition>> group : groups.entrySet()) {
+			try {
+				redefine(group.getValue());
+			} catch (Exception e) {
+				failures.put(group.getKey(), e);
+			}
+		}
+		if (!failures.isEmpty())
+			throw new HotSwapException(failures);
+	}
+
+	private void redefine(List<ClassDefinition> definitions) throws Exception {
+		try {
+			inst.redefineClasses(definitions.toArray(new ClassDefinition[definitions.size()]));
+		} catch (LinkageError e) {
+			// a class which doesn't verify, or isn't well formed
+			throw new Exception(e.toString(), e);
+		}
+	}
+
+	public void replaceOnLoad(String className, File classFile) {
+		deferred.put(className.replace('.', '/'), classFile);
+	}
+
+	/**
+	 * Retransforms the classes, without changing them, to get the bytes they were
+	 * last defined or redefined with. Empty if the VM can't retransform classes.
+	 */
+	public synchronized Map<String, byte[]> fetch(Collection<String> classNames) throws Exception {
+		Map<String, byte[]> ret = new LinkedHashMap<String, byte[]>();
+		if (!inst.isRetransformClassesSupported())
+			return ret;
+		Map<String, List<Class<?>>> loaded = loadedClasses(classNames);
+		Map<Class<?>, byte[]> classes = new ConcurrentHashMap<Class<?>, byte[]>();
+		List<Class<?>> retransformed = new ArrayList<Class<?>>();
+		for (List<Class<?>> list : loaded.values()) {
+			// the first copy stands for the others
+			retransformed.add(list.get(0));
+		}
+		if (retransformed.isEmpty())
+			return ret;
+		fetching = classes;
+		try {
+			inst.retransformClasses(retransformed.toArray(new Class<?>[retransformed.size()]));
+		} finally {
+			fetching = null;
+		}
+		for (Class<?> c : retransformed) {
+			byte [] classBytes = classes.get(c);
+			if (classBytes != null)
+				ret.put(c.getName(), classBytes);
+		}
+		return ret;
+	}
+
+	public byte [] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+			ProtectionDomain protectionDomain, byte [] classfileBuffer) {
+		Map<Class<?>, byte[]> classes = fetching;
+		if (classes != null && classBeingRedefined != null) {
+			classes.put(classBeingRedefined, classfileBuffer.clone());
+			return null;
+		}
+		if (classBeingRedefined != null || className == null)
+			return null;
+		if (loaderFilter != null && !isSelected(loader, protectionDomain))
+			return null;
+		File classFile = deferred.get(className);
+		if (classFile == null)
+			return null;
+		try {
+			return Files.readAllBytes(classFile.toPath());
+		} catch (IOException e) {
+			warn("deferred replacement of " + className.replace('/', '.') + " failed (" + e + ")");
+			return null;
+		}
+	}
+
+	public void setClassLoaderFilter(String filter) {
+		ClassLoaderFilter current = loaderFilter;
+		if (filter == null)
+			loaderFilter = null;
+		else if (current == null || !filter.equals(current.toString()))
+			loaderFilter = new ClassLoaderFilter(filter);
+	}
+
+	public void close() {
+		// the agent stays, for the next connection
+	}
+
+	/**
+	 * Finds the loaded classes with the given names, in every class loader.
+	 */
+	private Map<String, List<Class<?>>> loadedClasses(Collection<String> classNames) {
+		Set<String> names = new HashSet<String>(classNames);
+		Map<String, List<Class<?>>> ret = new LinkedHashMap<String, List<Class<?>>>();
+		Class<?> [] classes = inst.getAllLoadedClasses();
+		for (int i=0; i<classes.length; i++) {
+			String name = classes[i].getName();
+			if (!names.contains(name) || !inst.isModifiableClass(classes[i]))
+				continue;
+			if (loaderFilter != null && !isSelected(classes[i].getClassLoader(), classes[i].getProtectionDomain()))
+				continue;
+			List<Class<?>> list = ret.get(name);
+			if (list == null) {
+				list = new ArrayList<Class<?>>();
+				ret.put(name, list);
+			}
+			list.add(classes[i]);
+		}
+		return ret;
+	}
+
+	/**
+	 * Matches the loader against the filter; in the VM, the code source is the one
+	 * of the class itself.
+	 */
+	private boolean isSelected(ClassLoader loader, ProtectionDomain protectionDomain) {
+		ClassLoaderFilter filter = loaderFilter;
+		if (filter == null)
+			return true;
+		if (loader == null)
+			return false;
+		String name = null;
+		try {
+			// Java 9 and later
+			name = (String)ClassLoader.class.getMethod("getName").invoke(loader);
+		} catch (Exception e) {
+			// no name then
+		}
+		List<String> codeSources = new ArrayList<String>(1);
+		if (protectionDomain != null && protectionDomain.getCodeSource() != null
+				&& protectionDomain.getCodeSource().getLocation() != null)
+			codeSources.add(protectionDomain.getCodeSource().getLocation().toString());
+		return filter.matches(loader.getClass().getName(), name, codeSources);
+	}
+
+	// same as in HotSwapHelper, which can't be loaded here
+	private static void removeGroups(Map<String, byte[]> classes, Set<String> groups) {
+		for (Iterator<String> i = classes.keySet().iterator(); i.hasNext(); ) {
+			if (groups.contains(groupOf(i.next())))
+				i.remove();
+		}
+	}
+
+	// same as HotSwapHelper.groupOf, which can't be loaded here
+	private static String groupOf(String className) {
+		int dollar = className.indexOf('$', className.lastIndexOf('.') + 1);
+		return dollar > 0 ? className.substring(0, dollar) : className;
+	}
+}
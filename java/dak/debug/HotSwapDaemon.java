@@ -0,0 +1,205 @@
+
+package dak.debug;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import com.sun.jdi.VMDisconnectedException;
+
+/**
+ * A long lived process which stays attached to the VM, so that the cost of attaching
+ * and of indexing the loaded classes is only paid once. The Hotswap task sends it the
+ * classes to replace over a local socket (see its <b>daemon</b> attribute).
+ * <p/>
+ * Usage:<br/>
+ * <code>
+ *   java -cp hotswap.jar dak.debug.HotSwapDaemon -listen 9100 [-host localhost] -port 9000
+ * </code><br/>
+ * or <code>-name</code> instead of <code>-host</code>/<code>-port</code> for a shared
+ * memory connection. The daemon only accepts connections from the local machine. It
+ * attaches on the first request, and attaches again if the VM went away.
+ * <p/>
+ * As any user of the machine could connect, the clients must also give a token,
+ * which the daemon writes to <code>~/.hotswap/daemon-&lt;port&gt;.token</code> where
+ * only its user can read it, and deletes when it stops. The task reads it from
+ * there, so it has to run as the same user.
+ * <code>-listen 9100 -stop</code> stops the daemon listening on port 9100.
+ * <p/>
+ * The daemon keeps the versions replaced by the last swaps in memory, so that a
+ * client can roll them back (see the <b>rollback</b> attribute of the task);
+ * <code>-history 5</code> is the number of swaps kept, 0 to keep none. Through JDWP,
+ * only the classes swapped before through the daemon can be rolled back.
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+public class HotSwapDaemon extends TransportServer {
+	private final String host;
+	private final String port;
+	private final String name;
+	private int historySize = DEFAULT_HISTORY;
+	private HotSwapHelper hsh;
+	private String token;
+	private File tokenFile;
+
+	static final int DEFAULT_HISTORY = 5;
+
+	public HotSwapDaemon(String host, String port, String name) {
+		this.host = host;
+		this.port = port;
+		this.name = name;
+	}
+
+	/**
+	 * @param historySize the number of swaps which can be rolled back, 0 for none
+	 */
+	public void setHistorySize(int historySize) {
+		this.historySize = historySize;
+	}
+
+	public static void main(String [] args) throws Exception {
+		String host = null;
+		String port = null;
+		String name = null;
+		int listen = -1;
+		int history = DEFAULT_HISTORY;
+		if (args.length == 3 && "-listen".equals(args[0]) && "-stop".equals(args[2])) {
+			new DaemonClient(Integer.parseInt(args[1])).shutdown();
+			return;
+		}
+		for (int i=0; i<args.length-1; i+=2) {
+			if ("-host".equals(args[i]))
+				host = args[i+1];
+			else if ("-port".equals(args[i]))
+				port = args[i+1];
+			else if ("-name".equals(args[i]))
+				name = args[i+1];
+			else if ("-listen".equals(args[i]))
+				listen = Integer.parseInt(args[i+1]);
+			else if ("-history".equals(args[i]))
+				history = Integer.parseInt(args[i+1]);
+		}
+		if (listen < 0 || (port == null && name == null)) {
+			System.err.println("usage: HotSwapDaemon -listen <port> [-host <host>] -port <port> | -name <name> [-history <swaps>]");
+			System.exit(1);
+		}
+		HotSwapDaemon daemon = new HotSwapDaemon(host, port, name);
+		daemon.setHistorySize(history);
+		daemon.serve(listen);
+	}
+
+	/**
+	 * Serves the clients, one at a time, until one of them asks for a shutdown.
+	 */
+	public void serve(int listenPort) throws IOException {
+		ServerSocket server = new ServerSocket(listenPort, 50, InetAddress.getByName(null));
+		token = newToken();
+		tokenFile = tokenFile(server.getLocalPort());
+		try {
+			writeToken(tokenFile, token);
+		} catch (IOException e) {
+			server.close();
+			throw e;
+		}
+		log("hotswap daemon listening on " + server.getLocalSocketAddress());
+		try {
+			serve(server);
+		} finally {
+			disconnect();
+			tokenFile.delete();
+		}
+	}
+
+	protected String checkToken(String token) {
+		return this.token.equals(token) ? null : "wrong token, the daemon's is in " + tokenFile;
+	}
+
+	/**
+	 * @return the file the daemon listening on the port keeps its token in
+	 */
+	static File tokenFile(int listenPort) {
+		return new File(new File(System.getProperty("user.home"), ".hotswap"), "daemon-" + listenPort + ".token");
+	}
+
+	/**
+	 * @return the token of the daemon listening on the port
+	 */
+	static String readToken(int listenPort) throws IOException {
+		File file = tokenFile(listenPort);
+		if (!file.exists())
+			throw new IOException("no hotswap daemon token in " + file + ", is the daemon running as this user?");
+		return new String(Files.readAllBytes(file.toPath()), "US-ASCII").trim();
+	}
+
+	private static void writeToken(File file, String token) throws IOException {
+		File dir = file.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("cannot create " + dir);
+		Path path = file.toPath();
+		// left by a daemon which didn't stop cleanly
+		Files.deleteIfExists(path);
+		try {
+			// only readable by its owner before the token goes in
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			// not a POSIX file system, as on Windows, where the home directory is private
+			Files.createFile(path);
+		}
+		Files.write(path, token.getBytes("US-ASCII"));
+	}
+
+	protected SwapTransport transport() throws Exception {
+		return helper();
+	}
+
+	protected boolean retry(Exception e) {
+		if (!(e instanceof VMDisconnectedException))
+			return false;
+		// the VM went away, maybe restarted; attach again once
+		hsh = null;
+		return true;
+	}
+
+	protected void served(SwapTransport transport) {
+		for (String warning : ((HotSwapHelper)transport).getStats().takeWarnings())
+			warn(warning);
+	}
+
+	/**
+	 * Logs to the console the daemon runs in.
+	 */
+	protected void log(String message) {
+		System.err.println(message);
+	}
+
+	private HotSwapHelper helper() throws Exception {
+		if (hsh == null) {
+			HotSwapHelper helper = new HotSwapHelper();
+			// a new VM may run other versions: the history starts over
+			if (historySize > 0)
+				helper.setHistory(new SwapHistory(historySize));
+			if (port != null)
+				helper.connect(host, port);
+			else
+				helper.connect(name);
+			hsh = helper;
+			log("attached to " + (port != null ? (host == null ? "localhost" : host) + ":" + port : name));
+		}
+		return hsh;
+	}
+
+	private void disconnect() {
+		if (hsh == null)
+			return;
+		try {
+			hsh.disconnect();
+		} catch (Exception e) {
+			// going away anyway
+		}
+		hsh = null;
+	}
+}
@@ -0,0 +1,41 @@
+
+package dak.debug;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Thrown when some classes of a batch could not be replaced. The failures are
+ * kept per group, under the name of the top level class, so the caller can report
+ * which classes were rejected; the nested classes of a group fail with it.
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+public class HotSwapException extends Exception {
+	private final Map<String, Exception> failures;
+
+	public HotSwapException(Map<String, Exception> failures) {
+		super(describe(failures));
+		this.failures = failures;
+	}
+
+	/**
+	 * @return the cause of the failure of each rejected group, keyed by the name
+	 * of its top level class (see {@link HotSwapHelper#groupOf(String)})
+	 */
+	public Map<String, Exception> getFailures() {
+		return failures;
+	}
+
+	private static String describe(Map<String, Exception> failures) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(failures.size()).append(" class group(s) could not be replaced:");
+		Iterator<Map.Entry<String, Exception>> iter = failures.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<String, Exception> entry = iter.next();
+			sb.append(' ').append(entry.getKey()).append(" (").append(entry.getValue()).append(')');
+			if (iter.hasNext()) sb.append(',');
+		}
+		return sb.toString();
+	}
+}
@@ -1,18 +1,35 @@
 
 package dak.debug;
 
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
 
 import com.sun.jdi.Bootstrap;
+import com.sun.jdi.ClassLoaderReference;
 import com.sun.jdi.ReferenceType;
+import com.sun.jdi.VMDisconnectedException;
 import com.sun.jdi.VirtualMachine;
 import com.sun.jdi.VirtualMachineManager;
 import com.sun.jdi.connect.AttachingConnector;
@@ -20,15 +37,74 @@ import com.sun.jdi.connect.Connector;
 
 /**
  * This class provides the workings necessary to connect to a running JVM and to replace
- * classes.
+ * classes. It attaches to the JVM through JDWP, or goes through a {@link HotSwapDaemon}
+ * or a {@link HotSwapAgent} loaded in the JVM.
  *
  * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
  */
-public class HotSwapHelper {
+public class HotSwapHelper implements SwapTransport {
 	private VirtualMachine vm;
+	private LoadedClassIndex loadedClasses;
+	// the daemon or agent the classes go through, when not attached directly
+	private SwapTransport remote;
+	// whether remote is an agent, and is to be stopped on disconnecting
+	private boolean agent;
+	private boolean stopAgent;
+	private boolean preflight = true;
+	// schema of the last version sent to the VM, for each class swapped so far
+	private final Map<String, ClassSchema> schemas = new HashMap<String, ClassSchema>();
+	private final SwapStats stats = new SwapStats();
+	// the classes loaded in the VM along with the agent
+	private static final Class<?> [] AGENT_CLASSES = {
+		HotSwapAgent.class, TransportServer.class, SwapTransport.class, HotSwapException.class,
+		ClassLoaderFilter.class, SwapHistory.class
+	};
+	private static File agentJar;
+	// the VM worked on, as shown in the flight recorder events
+	private String target;
+	private ClassLoaderFilter loaderFilter;
+	// the versions replaced by each swap, null when none is kept
+	private SwapHistory history;
 
 	public HotSwapHelper() { }
 
+	/**
+	 * Whether the classes are compared with the running ones before being sent, so
+	 * that changes no VM accepts (fields, supertypes, non private methods) are
+	 * rejected without contacting the VM. Defaults to true.
+	 */
+	public void setPreflight(boolean preflight) {
+		this.preflight = preflight;
+	}
+
+	/**
+	 * Restricts the classes looked up and replaced to those of some class loaders,
+	 * so that the copies of a class in other loaders (other applications of the
+	 * same container) are left alone. May be set before connecting.
+	 * @param filter a {@link ClassLoaderFilter} pattern, null for all the loaders
+	 */
+	public void setClassLoaderFilter(String filter) throws Exception {
+		if (filter == null ? loaderFilter == null : loaderFilter != null && filter.equals(loaderFilter.toString()))
+			return;
+		loaderFilter = filter == null ? null : new ClassLoaderFilter(filter);
+		if (remote != null)
+			remote.setClassLoaderFilter(filter);
+		if (loadedClasses != null)
+			loadedClasses.setLoaderFilter(loaderFilter);
+	}
+
+	/**
+	 * Keeps the versions of the classes running before each swap, so that the swap
+	 * can be undone with {@link #rollback()}. They are the ones last sent for the class,
+	 * when the history has them, or else fetched from the VM if the transport can
+	 * (only the agent can). Without a history, which is the default, a daemon or an
+	 * agent keeps its own, and rollbacks go to it.
+	 * @param history the history, null to keep none
+	 */
+	public void setHistory(SwapHistory history) {
+		this.history = history;
+	}
+
 	public void connect(String name) throws Exception {
 		connect(null, null, name);
 	}
@@ -37,10 +113,150 @@ public class HotSwapHelper {
 		connect(host, port, null);
 	}
 
+	/**
+	 * Connects to a {@link HotSwapDaemon} on the local machine instead of attaching
+	 * to the VM directly; the daemon keeps its connection from one run to the next.
+	 */
+	public void connectDaemon(int daemonPort) throws Exception {
+		target = "daemon:" + daemonPort;
+		long start = System.nanoTime();
+		Object event = SwapEvents.begin(SwapEvents.ATTACH);
+		boolean failed = true;
+		try {
+			remote = new DaemonClient(daemonPort);
+			if (loaderFilter != null)
+				remote.setClassLoaderFilter(loaderFilter.toString());
+			failed = false;
+		} finally {
+			stats.time("attach", start);
+			SwapEvents.commit(event, target, 0, 0, failed);
+		}
+	}
+
+	/**
+	 * Connects to a VM on the local machine through a {@link HotSwapAgent}, which is
+	 * loaded in the VM with the Attach API if it isn't there yet. The VM doesn't need
+	 * to run with JDWP.
+	 * @param pid the process id of the VM, or a part of its main class or jar name
+	 */
+	public void connectAgent(String pid) throws Exception {
+		target = "pid:" + pid;
+		long start = System.nanoTime();
+		Object event = SwapEvents.begin(SwapEvents.ATTACH);
+		boolean failed = true;
+		try {
+			com.sun.tools.attach.VirtualMachine attached = com.sun.tools.attach.VirtualMachine.attach(findPid(pid));
+			// loaded again if it runs already, only to hand it the token of this connection
+			String token = TransportServer.newToken();
+			String agentPort;
+			try {
+				attached.loadAgent(agentJar().getPath(), token);
+				agentPort = attached.getSystemProperties().getProperty(HotSwapAgent.PORT_PROPERTY);
+			} finally {
+				attached.detach();
+			}
+			if (agentPort == null)
+				throw new Exception("hotswap agent did not start in VM " + pid);
+			remote = new DaemonClient(Integer.parseInt(agentPort), "hotswap agent", token);
+			agent = true;
+			if (loaderFilter != null)
+				remote.setClassLoaderFilter(loaderFilter.toString());
+			failed = false;
+		} finally {
+			stats.time("attach", start);
+			SwapEvents.commit(event, target, 0, 0, failed);
+		}
+	}
+
+	private static String findPid(String pid) throws Exception {
+		boolean numeric = true;
+		for (int i=0; i<pid.length(); i++) {
+			if (!Character.isDigit(pid.charAt(i)))
+				numeric = false;
+		}
+		if (numeric)
+			return pid;
+
+		List<String> found = new ArrayList<String>();
+		for (com.sun.tools.attach.VirtualMachineDescriptor vmd : com.sun.tools.attach.VirtualMachine.list()) {
+			if (vmd.displayName().contains(pid))
+				found.add(vmd.id());
+		}
+		if (found.size() != 1)
+			throw new Exception((found.isEmpty() ? "no" : found.size()) + " local VM running " + pid);
+		return found.get(0);
+	}
+
+	/**
+	 * @return the jar to load the agent from: the hotswap jar if these classes come
+	 * from it, or else a jar holding just the classes the agent needs
+	 */
+	private static synchronized File agentJar() throws IOException {
+		if (agentJar != null)
+			return agentJar;
+		URL location = HotSwapAgent.class.getProtectionDomain().getCodeSource().getLocation();
+		if (location.getPath().endsWith(".jar")) {
+			try {
+				File jar = new File(location.toURI());
+				JarFile jarFile = new JarFile(jar);
+				try {
+					Manifest manifest = jarFile.getManifest();
+					if (manifest != null && HotSwapAgent.class.getName().equals(manifest.getMainAttributes().getValue("Agent-Class"))) {
+						agentJar = jar;
+						return agentJar;
+					}
+				} finally {
+					jarFile.close();
+				}
+			} catch (URISyntaxException e) {
+				// build one then
+			}
+		}
+
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().putValue("Agent-Class", HotSwapAgent.class.getName());
+		manifest.getMainAttributes().putValue("Can-Redefine-Classes", "true");
+		manifest.getMainAttributes().putValue("Can-Retransform-Classes", "true");
+		File jar = File.createTempFile("hotswap-agent", ".jar");
+		jar.deleteOnExit();
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest);
+		try {
+			for (Class<?> c : AGENT_CLASSES) {
+				String entry = c.getName().replace('.', '/') + ".class";
+				out.putNextEntry(new JarEntry(entry));
+				InputStream in = c.getClassLoader().getResourceAsStream(entry);
+				try {
+					byte [] buffer = new byte[8192];
+					int count;
+					while ((count = in.read(buffer)) != -1)
+						out.write(buffer, 0, count);
+				} finally {
+					in.close();
+				}
+			}
+		} finally {
+			out.close();
+		}
+		agentJar = jar;
+		return agentJar;
+	}
+
+	/**
+	 * @return the time spent attaching, looking classes up, checking and redefining
+	 * them, with the number of classes redefined, failed and the bytes sent
+	 */
+	public SwapStats getStats() {
+		return stats;
+	}
+
 	// either host,port will be set, or name
 	private void connect(String host, String port, String name) throws Exception {
 		// connect to JVM
 		boolean useSocket = (port != null);
+		target = useSocket ? (host == null ? "localhost" : host) + ":" + port : name;
+		long start = System.nanoTime();
+		Object event = SwapEvents.begin(SwapEvents.ATTACH);
 
 		VirtualMachineManager manager = Bootstrap.virtualMachineManager();
 		List connectors = manager.attachingConnectors();
@@ -86,7 +302,13 @@ public class HotSwapHelper {
 				arg.setValue(host);
 			}
 		}
-		vm = connector.attach(args);
+		try {
+			vm = connector.attach(args);
+		} finally {
+			stats.time("attach", start);
+			SwapEvents.commit(event, target, 0, 0, vm == null);
+		}
+		loadedClasses = null;
 
 		// query capabilities
 		if (!vm.canRedefineClasses()) {
@@ -102,44 +324,434 @@ public class HotSwapHelper {
 		// load class(es)
 		byte [] classBytes = loadClassFile(classFile);
 		// redefine in JVM
-		List classes = vm.classesByName(className);
+		replace(Collections.singletonMap(className, classBytes));
+	}
+
+	/**
+	 * Replaces a set of classes with a single redefinition request, so the target
+	 * JVM only has to reach one safepoint for the whole batch. If the batch is
+	 * rejected, the classes are retried group by group so that the failure can be
+	 * attributed to the group(s) which caused it.
+	 * <p/>
+	 * A group is a top level class with its nested, local and anonymous classes
+	 * (see {@link #groupOf(String)}). The classes of a group are always redefined
+	 * together: either all of them are replaced, or none.
+	 * <p/>
+	 * With preflight on, the groups holding a class whose schema changed are left
+	 * out of the batch and reported along with the groups the VM rejected.
+	 *
+	 * @param classes the new class bytes, keyed by class name
+	 * @throws HotSwapException if some of the groups could not be redefined
+	 */
+	public void replace(Map<String, byte[]> classes) throws Exception {
+		Map<String, byte[]> before = history == null ? null : previousVersions(classes.keySet());
+		try {
+			send(classes);
+		} catch (HotSwapException e) {
+			if (before != null)
+				record(before, classes, e.getFailures().keySet());
+			throw e;
+		}
+		if (before != null)
+			record(before, classes, Collections.<String>emptySet());
+	}
+
+	/**
+	 * Sends the classes replaced by the latest swap back to the VM, as they were before
+	 * it, in a single batch; the swap before it is then the latest, unless some groups
+	 * could not be sent back, which stay to be rolled back. Goes to the daemon or the
+	 * agent when there is no history here.
+	 * @return the number of classes rolled back, 0 if there was no swap to undo
+	 * @throws HotSwapException if some of the groups could not be redefined
+	 */
+	public int rollback() throws Exception {
+		if (history == null) {
+			if (remote == null)
+				throw new IllegalStateException("no swap history kept");
+			int rolledBack;
+			try {
+				rolledBack = remote.rollback();
+			} catch (HotSwapException e) {
+				takeRemoteWarnings();
+				throw e;
+			}
+			takeRemoteWarnings();
+			return rolledBack;
+		}
+		Map<String, byte[]> previous = history.getPrevious();
+		if (previous == null)
+			return 0;
+		Map<String, byte[]> restored = new LinkedHashMap<String, byte[]>(previous);
+		try {
+			send(previous);
+		} catch (HotSwapException e) {
+			removeGroups(restored, e.getFailures().keySet());
+			history.rolledBack(restored);
+			stats.count("rolledBack", restored.size());
+			throw e;
+		}
+		history.rolledBack(restored);
+		stats.count("rolledBack", restored.size());
+		return restored.size();
+	}
+
+	/**
+	 * The bytes running before the swap: those last sent, else those the VM gives.
+	 */
+	private Map<String, byte[]> previousVersions(Collection<String> classNames) {
+		long start = System.nanoTime();
+		Map<String, byte[]> ret = new HashMap<String, byte[]>();
+		try {
+			List<String> unknown = new ArrayList<String>();
+			for (String className : classNames) {
+				byte [] classBytes = history.getActive(className);
+				if (classBytes != null)
+					ret.put(className, classBytes);
+				else
+					unknown.add(className);
+			}
+			if (!unknown.isEmpty())
+				ret.putAll(fetch(unknown));
+		} catch (VMDisconnectedException e) {
+			throw e;
+		} catch (Exception e) {
+			stats.warn("previous versions not kept, the swap can't be rolled back (" + e + ")");
+		} finally {
+			stats.time("history", start);
+		}
+		return ret;
+	}
+
+	private void record(Map<String, byte[]> before, Map<String, byte[]> classes, Set<String> failedGroups) {
+		Map<String, byte[]> after = new LinkedHashMap<String, byte[]>(classes);
+		removeGroups(after, failedGroups);
+		Map<String, byte[]> previous = new LinkedHashMap<String, byte[]>();
+		for (String className : after.keySet()) {
+			byte [] classBytes = before.get(className);
+			if (classBytes != null)
+				previous.put(className, classBytes);
+		}
+		if (previous.size() < after.size())
+			stats.warn((after.size() - previous.size()) + " classes had no previous version to keep, a rollback leaves them as they are");
+		try {
+			history.record(previous, after);
+		} catch (IOException e) {
+			stats.warn("swap history not updated (" + e + ")");
+		}
+	}
 
-		// if the class isn't loaded on the VM, can't do the replace.
-		if (classes == null || classes.size() == 0)
+	private static void removeGroups(Map<String, byte[]> classes, Set<String> groups) {
+		for (Iterator<String> i = classes.keySet().iterator(); i.hasNext(); ) {
+			if (groups.contains(groupOf(i.next())))
+				i.remove();
+		}
+	}
+
+	/**
+	 * Reads the bytes the VM runs for the classes, when the transport can: through
+	 * JDWP, this returns nothing.
+	 */
+	public Map<String, byte[]> fetch(Collection<String> classNames) throws Exception {
+		if (remote == null)
+			return new HashMap<String, byte[]>();
+		return remote.fetch(classNames);
+	}
+
+	private void send(Map<String, byte[]> classes) throws Exception {
+		if (remote != null) {
+			long start = System.nanoTime();
+			Object event = SwapEvents.begin(SwapEvents.REDEFINE);
+			boolean failed = true;
+			try {
+				remote.replace(classes);
+				failed = false;
+				takeRemoteWarnings();
+			} catch (HotSwapException e) {
+				stats.count("failed", e.getFailures().size());
+				takeRemoteWarnings();
+				throw e;
+			} finally {
+				long bytes = size(classes.values());
+				stats.time("redefine", start);
+				stats.count("bytes", bytes);
+				SwapEvents.commit(event, target, classes.size(), bytes, failed);
+			}
 			return;
+		}
+
+		Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+		Map<String, ClassSchema> newSchemas = new HashMap<String, ClassSchema>();
+		Map<String, Map<ReferenceType, byte[]>> groups = new LinkedHashMap<String, Map<ReferenceType, byte[]>>();
+		for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+			String group = groupOf(entry.getKey());
+			if (failures.containsKey(group))
+				continue;
+			List<ReferenceType> types = classesByName(entry.getKey());
+			// if the class isn't loaded on the VM, can't do the replace.
+			if (types.isEmpty())
+				continue;
+			if (preflight) {
+				long start = System.nanoTime();
+				ClassSchema schema = new ClassSchema(ClassFile.parse(entry.getValue()));
+				ClassSchema running = schemas.get(entry.getKey());
+				if (running == null)
+					running = new ClassSchema(types.get(0));
+				String change = running.incompatibleChange(schema);
+				stats.time("preflight", start);
+				if (change != null) {
+					// the rest of the group goes with it
+					failures.put(group, new Exception("schema change: " + entry.getKey() + ": " + change));
+					groups.remove(group);
+					continue;
+				}
+				newSchemas.put(entry.getKey(), schema);
+			}
+			Map<ReferenceType, byte[]> map = groups.get(group);
+			if (map == null) {
+				map = new LinkedHashMap<ReferenceType, byte[]>();
+				groups.put(group, map);
+			}
+			for (ReferenceType type : types) {
+				map.put(type, entry.getValue());
+			}
+		}
+
+		if (!groups.isEmpty()) {
+			Map<ReferenceType, byte[]> map = new HashMap<ReferenceType, byte[]>();
+			for (Map<ReferenceType, byte[]> group : groups.values())
+				map.putAll(group);
+			try {
+				redefine(map);
+				updateSchemas(map.keySet(), newSchemas);
+			} catch (VMDisconnectedException e) {
+				throw e;
+			} catch (Exception e) {
+				// a failed redefinition leaves every class of the batch untouched; a
+				// single group sent once needn't be sent again to be found at fault
+				if (groups.size() == 1 && !hasDuplicates(map.keySet())) {
+					failures.put(groups.keySet().iterator().next(), e);
+				}
+				else {
+					for (Map.Entry<String, Map<ReferenceType, byte[]>> group : groups.entrySet()) {
+						try {
+							replaceGroup(group.getKey(), group.getValue());
+							updateSchemas(group.getValue().keySet(), newSchemas);
+						} catch (VMDisconnectedException ex) {
+							throw ex;
+						} catch (Exception ex) {
+							failures.put(group.getKey(), ex);
+						}
+					}
+				}
+			}
+		}
+		if (!failures.isEmpty()) {
+			stats.count("failed", failures.size());
+			throw new HotSwapException(failures);
+		}
+	}
+
+	/**
+	 * Sends one redefinition request to the VM, keeping track of its time and size.
+	 * A rejected request is counted apart, as its classes are sent again when the
+	 * batch is retried group by group.
+	 */
+	private void redefine(Map<ReferenceType, byte[]> map) {
+		long start = System.nanoTime();
+		Object event = SwapEvents.begin(SwapEvents.REDEFINE);
+		boolean failed = true;
+		try {
+			vm.redefineClasses(map);
+			stats.count("redefined", map.size());
+			failed = false;
+		} finally {
+			long bytes = size(map.values());
+			stats.time(failed ? "rejected" : "redefine", start);
+			stats.count(failed ? "rejectedBytes" : "bytes", bytes);
+			SwapEvents.commit(event, target, map.size(), bytes, failed);
+		}
+	}
+
+	/**
+	 * Adds the warnings of the daemon or agent to those of this connection, for the
+	 * caller to report them along with its own.
+	 */
+	private void takeRemoteWarnings() throws Exception {
+		for (String warning : ((DaemonClient) remote).takeWarnings())
+			stats.warn(warning);
+	}
+
+	private static long size(Collection<byte[]> classes) {
+		long ret = 0;
+		for (byte [] classBytes : classes)
+			ret += classBytes.length;
+		return ret;
+	}
+
+	/**
+	 * Tells which group a class belongs to: the top level class it is nested in,
+	 * as given by the part of its simple name before the first '$'.
+	 * @return the name of the top level class
+	 */
+	public static String groupOf(String className) {
+		int dollar = className.indexOf('$', className.lastIndexOf('.') + 1);
+		return dollar > 0 ? className.substring(0, dollar) : className;
+	}
+
+	/**
+	 * Redefines the classes of a group, once for each class loader having loaded
+	 * them, so that a copy of the group which can't be replaced doesn't hold the
+	 * others back.
+	 */
+	private void replaceGroup(String group, Map<ReferenceType, byte[]> types) throws Exception {
+		Map<ClassLoaderReference, Map<ReferenceType, byte[]>> byLoader = new LinkedHashMap<ClassLoaderReference, Map<ReferenceType, byte[]>>();
+		for (Map.Entry<ReferenceType, byte[]> entry : types.entrySet()) {
+			ClassLoaderReference loader = entry.getKey().classLoader();
+			Map<ReferenceType, byte[]> map = byLoader.get(loader);
+			if (map == null) {
+				map = new HashMap<ReferenceType, byte[]>();
+				byLoader.put(loader, map);
+			}
+			map.put(entry.getKey(), entry.getValue());
+		}
 
 		int successes = 0;
 		List<Exception> errors = new LinkedList<Exception>();
-		for (int i=0; i<classes.size(); i++) {
-			ReferenceType refType = (ReferenceType)classes.get(i);
-			HashMap map = new HashMap();
-			map.put(refType, classBytes);
+		for (Map<ReferenceType, byte[]> map : byLoader.values()) {
 			try {
-			    vm.redefineClasses(map);
+			    redefine(map);
 			    successes++;
+			} catch (VMDisconnectedException e) {
+			    throw e;
 			} catch (Exception e) {
 			    errors.add(e);
 			}
 		}
 		if (!errors.isEmpty()) {
 			if (successes == 0) throw errors.get(0);
-			System.err.println(className + " has multiple occurences: " + successes + " were succesfully reloaded, " + errors.size() + " failed (" + errors.get(0) + ")");
+			stats.warn(group + " has multiple occurences: " + successes + " were succesfully reloaded, " + errors.size() + " failed (" + errors.get(0) + ")");
 		}
-//		System.err.println("class replaced!");
 	}
 
-	public void disconnect() throws Exception {
-		// nuthin to do here?
+	private static boolean hasDuplicates(Collection<ReferenceType> types) {
+		Set<String> names = new HashSet<String>();
+		for (ReferenceType type : types) {
+			if (!names.add(type.name()))
+				return true;
+		}
+		return false;
 	}
 
-	private byte [] loadClassFile(File classFile) throws IOException {
-		DataInputStream in = new DataInputStream(new FileInputStream(classFile));
+	private void updateSchemas(Collection<ReferenceType> types, Map<String, ClassSchema> newSchemas) {
+		for (ReferenceType type : types) {
+			ClassSchema schema = newSchemas.get(type.name());
+			if (schema != null)
+				schemas.put(type.name(), schema);
+		}
+	}
 
-		byte [] ret = new byte[(int)classFile.length()];
-		in.readFully(ret);
-		in.close();
+	/**
+	 * @return true if the class is loaded on the VM, and can thus be replaced
+	 */
+	public boolean isLoaded(String className) throws Exception {
+		return !findLoaded(Collections.singletonList(className)).isEmpty();
+	}
 
-//		System.err.println("class file loaded.");
-		return ret;
+	/**
+	 * Looks up several classes at once, in a single round trip with a daemon or an agent.
+	 * @return the classes which are loaded on the VM, and can thus be replaced
+	 */
+	public Set<String> findLoaded(Collection<String> classNames) throws Exception {
+		Set<String> ret = new LinkedHashSet<String>();
+		long start = System.nanoTime();
+		Object event = SwapEvents.begin(SwapEvents.LOOKUP);
+		boolean failed = true;
+		try {
+			if (remote != null) {
+				ret.addAll(remote.findLoaded(classNames));
+				takeRemoteWarnings();
+			}
+			else {
+				for (String className : classNames) {
+					if (!index().classesByName(className).isEmpty())
+						ret.add(className);
+				}
+			}
+			failed = false;
+			return ret;
+		} finally {
+			stats.time("lookup", start);
+			SwapEvents.commit(event, target, classNames.size(), ret.size(), failed);
+		}
+	}
+
+	/**
+	 * Registers the class file to replace the class with as soon as the VM loads it.
+	 * The registration lasts as long as the connection.
+	 */
+	public void replaceOnLoad(String className, File classFile) throws Exception {
+		if (remote != null) {
+			remote.replaceOnLoad(className, classFile);
+			return;
+		}
+		index().replaceOnLoad(className, classFile);
+	}
+
+	/**
+	 * Looks the class up in the index of loaded classes, which is built on first
+	 * use with a single query and then follows the class loading events of the VM.
+	 */
+	private List<ReferenceType> classesByName(String className) {
+		long start = System.nanoTime();
+		try {
+			return index().classesByName(className);
+		} finally {
+			stats.time("lookup", start);
+		}
+	}
+
+	private LoadedClassIndex index() {
+		if (loadedClasses == null) {
+			loadedClasses = new LoadedClassIndex(vm, stats);
+			loadedClasses.setLoaderFilter(loaderFilter);
+		}
+		return loadedClasses;
+	}
+
+	/**
+	 * Sets whether to stop the {@link HotSwapAgent} when disconnecting, rather than
+	 * leave it in the VM for the next runs. Classes waiting to be replaced when they
+	 * get loaded are then dropped.
+	 */
+	public void setStopAgent(boolean stopAgent) {
+		this.stopAgent = stopAgent;
+	}
+
+	/**
+	 * Releases the connection. A direct connection is kept open while classes are
+	 * waiting to be replaced when they get loaded, it then ends with this process.
+	 */
+	public void disconnect() throws Exception {
+		if (remote != null) {
+			if (agent && stopAgent)
+				((DaemonClient) remote).shutdown();
+			else
+				remote.close();
+			remote = null;
+			agent = false;
+		}
+		else if (vm != null && (loadedClasses == null || !loadedClasses.hasDeferred())) {
+			vm.dispose();
+			vm = null;
+			loadedClasses = null;
+		}
+	}
+
+	public void close() throws Exception {
+		disconnect();
+	}
+
+	public static byte [] loadClassFile(File classFile) throws IOException {
+		return Files.readAllBytes(classFile.toPath());
 	}
 }
@@ -0,0 +1,85 @@
+
+package dak.debug;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Flight Recorder event types, only loaded through {@link SwapEvents} once
+ * jdk.jfr is known to be there.
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+class JfrEvents {
+
+	@Category("Hotswap")
+	static abstract class SwapEvent extends Event {
+		@Label("Target")
+		@Description("The VM worked on")
+		String target;
+
+		@Label("Classes")
+		int classes;
+
+		@Label("Failed")
+		boolean failed;
+	}
+
+	@Name("dak.hotswap.Attach")
+	@Label("Hotswap Attach")
+	@Description("Attaching to a VM, or connecting to a hotswap daemon")
+	static class AttachEvent extends SwapEvent { }
+
+	@Name("dak.hotswap.Lookup")
+	@Label("Hotswap Lookup")
+	@Description("Looking up which classes are loaded on a VM")
+	static class LookupEvent extends SwapEvent {
+		@Label("Loaded")
+		@Description("The number of classes found loaded")
+		int loaded;
+	}
+
+	@Name("dak.hotswap.Redefine")
+	@Label("Hotswap Redefine")
+	@Description("A redefinition request sent to a VM")
+	static class RedefineEvent extends SwapEvent {
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+	}
+
+	static Object begin(int type) {
+		SwapEvent event;
+		switch (type) {
+			case SwapEvents.ATTACH:
+				event = new AttachEvent();
+				break;
+			case SwapEvents.LOOKUP:
+				event = new LookupEvent();
+				break;
+			default:
+				event = new RedefineEvent();
+		}
+		event.begin();
+		return event;
+	}
+
+	static void commit(Object o, String target, int classes, long count, boolean failed) {
+		SwapEvent event = (SwapEvent)o;
+		event.end();
+		if (!event.shouldCommit())
+			return;
+		event.target = target;
+		event.classes = classes;
+		event.failed = failed;
+		if (event instanceof LookupEvent)
+			((LookupEvent)event).loaded = (int)count;
+		else if (event instanceof RedefineEvent)
+			((RedefineEvent)event).bytes = count;
+		event.commit();
+	}
+}
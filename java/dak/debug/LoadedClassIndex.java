@@ -0,0 +1,286 @@
+
+package dak.debug;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.sun.jdi.ArrayReference;
+import com.sun.jdi.ArrayType;
+import com.sun.jdi.ClassLoaderReference;
+import com.sun.jdi.Field;
+import com.sun.jdi.IntegerValue;
+import com.sun.jdi.ObjectReference;
+import com.sun.jdi.ReferenceType;
+import com.sun.jdi.StringReference;
+import com.sun.jdi.VMDisconnectedException;
+import com.sun.jdi.Value;
+import com.sun.jdi.VirtualMachine;
+import com.sun.jdi.event.ClassPrepareEvent;
+import com.sun.jdi.event.ClassUnloadEvent;
+import com.sun.jdi.event.Event;
+import com.sun.jdi.event.EventIterator;
+import com.sun.jdi.event.EventSet;
+import com.sun.jdi.event.VMDisconnectEvent;
+import com.sun.jdi.request.ClassPrepareRequest;
+import com.sun.jdi.request.ClassUnloadRequest;
+import com.sun.jdi.request.EventRequest;
+import com.sun.jdi.request.EventRequestManager;
+
+/**
+ * Index of the classes loaded in the VM, by name. It is filled by a single
+ * allClasses() request and then kept current with the ClassPrepare and
+ * ClassUnload events, so looking a class up doesn't cost a round trip.
+ * <p/>
+ * The same events are used to replace the classes registered with
+ * {@link #replaceOnLoad(String, File)} as soon as they are loaded. Each of these
+ * requests is deleted once its class is replaced, as the class is then found loaded.
+ * <p/>
+ * With a {@link ClassLoaderFilter}, only the classes of the selected loaders are
+ * found or replaced on load. Whether a loader is selected is found out once, the
+ * first time one of its classes is looked up.
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+class LoadedClassIndex implements Runnable {
+	private static final String DEFERRED_FILE = "hotswap.file";
+
+	private final VirtualMachine vm;
+	// where the deferred replacements which fail are reported
+	private final SwapStats stats;
+	private final Map<String, List<ReferenceType>> classes = new HashMap<String, List<ReferenceType>>();
+	// unloaded class names, which may still have copies in other class loaders
+	private final Set<String> stale = new HashSet<String>();
+	private final Map<String, ClassPrepareRequest> deferred = new HashMap<String, ClassPrepareRequest>();
+	private ClassLoaderFilter loaderFilter;
+	private final Map<ClassLoaderReference, Boolean> selectedLoaders = new HashMap<ClassLoaderReference, Boolean>();
+
+	LoadedClassIndex(VirtualMachine vm, SwapStats stats) {
+		this.vm = vm;
+		this.stats = stats;
+
+		// listen before the query, so that no class can fall in between
+		EventRequestManager erm = vm.eventRequestManager();
+		ClassPrepareRequest prepare = erm.createClassPrepareRequest();
+		prepare.setSuspendPolicy(EventRequest.SUSPEND_NONE);
+		prepare.enable();
+		ClassUnloadRequest unload = erm.createClassUnloadRequest();
+		unload.setSuspendPolicy(EventRequest.SUSPEND_NONE);
+		unload.enable();
+
+		Thread thread = new Thread(this, "hotswap class index");
+		thread.setDaemon(true);
+		thread.start();
+
+		List all = vm.allClasses();
+		synchronized (classes) {
+			for (int i=0; i<all.size(); i++) {
+				add((ReferenceType)all.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Restricts the classes found to those of the selected class loaders.
+	 * @param filter the loaders to select, null for all of them
+	 */
+	void setLoaderFilter(ClassLoaderFilter filter) {
+		synchronized (classes) {
+			loaderFilter = filter;
+			selectedLoaders.clear();
+		}
+	}
+
+	/**
+	 * @return the loaded classes with the given name, one per defining class loader
+	 */
+	List<ReferenceType> classesByName(String className) {
+		synchronized (classes) {
+			if (stale.remove(className)) {
+				classes.remove(className);
+				List found = vm.classesByName(className);
+				for (int i=0; i<found.size(); i++) {
+					add((ReferenceType)found.get(i));
+				}
+			}
+			List<ReferenceType> types = classes.get(className);
+			if (types == null)
+				return Collections.emptyList();
+			List<ReferenceType> ret = new ArrayList<ReferenceType>(types.size());
+			for (ReferenceType type : types) {
+				if (isSelected(type))
+					ret.add(type);
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Replaces the class with the content of the file when it gets loaded. The
+	 * loading thread is held until the class is replaced. The file is read at
+	 * that time, so it always provides the latest version of the class.
+	 */
+	void replaceOnLoad(String className, File classFile) {
+		synchronized (deferred) {
+			ClassPrepareRequest request = deferred.get(className);
+			if (request == null) {
+				request = vm.eventRequestManager().createClassPrepareRequest();
+				request.addClassFilter(className);
+				request.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
+				request.putProperty(DEFERRED_FILE, classFile);
+				request.enable();
+				deferred.put(className, request);
+			}
+			else {
+				request.putProperty(DEFERRED_FILE, classFile);
+			}
+		}
+	}
+
+	boolean hasDeferred() {
+		synchronized (deferred) {
+			return !deferred.isEmpty();
+		}
+	}
+
+	public void run() {
+		try {
+			while (true) {
+				EventSet events = vm.eventQueue().remove();
+				EventIterator iter = events.eventIterator();
+				while (iter.hasNext()) {
+					Event event = iter.nextEvent();
+					if (event instanceof ClassPrepareEvent) {
+						ReferenceType type = ((ClassPrepareEvent)event).referenceType();
+						boolean selected;
+						synchronized (classes) {
+							add(type);
+							selected = isSelected(type);
+						}
+						File classFile = (File)event.request().getProperty(DEFERRED_FILE);
+						if (classFile != null && selected) {
+							replaceLoaded(type, classFile);
+							forgetDeferred(type.name(), event.request());
+						}
+					}
+					else if (event instanceof ClassUnloadEvent) {
+						synchronized (classes) {
+							stale.add(((ClassUnloadEvent)event).className());
+						}
+					}
+					else if (event instanceof VMDisconnectEvent) {
+						return;
+					}
+				}
+				events.resume();
+			}
+		} catch (InterruptedException e) {
+			// done
+		} catch (VMDisconnectedException e) {
+			// done
+		}
+	}
+
+	private void replaceLoaded(ReferenceType type, File classFile) {
+		try {
+			Map<ReferenceType, byte[]> map = new HashMap<ReferenceType, byte[]>();
+			map.put(type, HotSwapHelper.loadClassFile(classFile));
+			vm.redefineClasses(map);
+		} catch (VMDisconnectedException e) {
+			throw e;
+		} catch (Exception e) {
+			stats.warn("deferred replacement of " + type.name() + " failed (" + e + ")");
+		}
+	}
+
+	/**
+	 * Deletes the request which replaced a class on load, so that the connection
+	 * needn't be kept open for it.
+	 */
+	private void forgetDeferred(String className, EventRequest request) {
+		synchronized (deferred) {
+			if (deferred.get(className) == request)
+				deferred.remove(className);
+		}
+		vm.eventRequestManager().deleteEventRequest(request);
+	}
+
+	private boolean isSelected(ReferenceType type) {
+		if (loaderFilter == null)
+			return true;
+		ClassLoaderReference loader = type.classLoader();
+		// the classes of the bootstrap loader are never selected
+		if (loader == null)
+			return false;
+		Boolean ret = selectedLoaders.get(loader);
+		if (ret == null) {
+			ret = Boolean.valueOf(loaderFilter.matches(loader.referenceType().name(), loaderName(loader), codeSources(loader)));
+			selectedLoaders.put(loader, ret);
+		}
+		return ret.booleanValue();
+	}
+
+	/**
+	 * @return the name given to the loader, from its field since calling a method
+	 * would need a suspended thread
+	 */
+	private static String loaderName(ClassLoaderReference loader) {
+		Value name = fieldValue(loader, "name");
+		return name instanceof StringReference ? ((StringReference)name).value() : null;
+	}
+
+	/**
+	 * @return the class path of the loader, for the loaders built on a URLClassPath
+	 * (URLClassLoader and the loaders of the JDK), as protocol:file
+	 */
+	private static List<String> codeSources(ClassLoaderReference loader) {
+		List<String> ret = new ArrayList<String>();
+		try {
+			Value ucp = fieldValue(loader, "ucp");
+			Value path = ucp instanceof ObjectReference ? fieldValue((ObjectReference)ucp, "path") : null;
+			if (!(path instanceof ObjectReference))
+				return ret;
+			Value elements = fieldValue((ObjectReference)path, "elementData");
+			Value size = fieldValue((ObjectReference)path, "size");
+			if (!(elements instanceof ArrayReference) || !(size instanceof IntegerValue))
+				return ret;
+			List urls = ((ArrayReference)elements).getValues(0, ((IntegerValue)size).value());
+			for (int i=0; i<urls.size(); i++) {
+				if (!(urls.get(i) instanceof ObjectReference))
+					continue;
+				ObjectReference url = (ObjectReference)urls.get(i);
+				Value protocol = fieldValue(url, "protocol");
+				Value file = fieldValue(url, "file");
+				if (protocol instanceof StringReference && file instanceof StringReference)
+					ret.add(((StringReference)protocol).value() + ":" + ((StringReference)file).value());
+			}
+		} catch (VMDisconnectedException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			// not the class path layout expected, no code source then
+		}
+		return ret;
+	}
+
+	private static Value fieldValue(ObjectReference object, String fieldName) {
+		Field field = object.referenceType().fieldByName(fieldName);
+		return field == null ? null : object.getValue(field);
+	}
+
+	private void add(ReferenceType type) {
+		if (type instanceof ArrayType)
+			return;
+		List<ReferenceType> types = classes.get(type.name());
+		if (types == null) {
+			types = new ArrayList<ReferenceType>(1);
+			classes.put(type.name(), types);
+		}
+		if (!types.contains(type))
+			types.add(type);
+	}
+}
@@ -0,0 +1,54 @@
+
+package dak.debug;
+
+/**
+ * Emits JDK Flight Recorder events for the work done on the VMs: attaching, looking
+ * the classes up and each redefinition request, with the number of classes and bytes.
+ * A recording of the process running the swap can then be laid over a recording of
+ * the target VM, where the redefinitions show up as jdk.RedefineClasses events.
+ * <p/>
+ * On a Java without JFR nothing is emitted, and the event classes, which need
+ * jdk.jfr, are never loaded.
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+class SwapEvents {
+	static final int ATTACH = 0;
+	static final int LOOKUP = 1;
+	static final int REDEFINE = 2;
+
+	private static final boolean ENABLED = isAvailable();
+
+	private static boolean isAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return !Boolean.getBoolean("hotswap.jfr.disabled");
+		} catch (Throwable t) {
+			return false;
+		}
+	}
+
+	/**
+	 * Starts timing an event.
+	 * @param type ATTACH, LOOKUP or REDEFINE
+	 * @return the event to commit, or null if JFR isn't there
+	 */
+	static Object begin(int type) {
+		if (!ENABLED)
+			return null;
+		return JfrEvents.begin(type);
+	}
+
+	/**
+	 * Ends and records an event, if the recording has it enabled.
+	 * @param event the event from {@link #begin(int)}, may be null
+	 * @param target the VM worked on
+	 * @param classes the number of classes looked up or redefined
+	 * @param count the classes found loaded for a lookup, the bytes sent for a redefinition
+	 * @param failed true if the VM failed or rejected the request
+	 */
+	static void commit(Object event, String target, int classes, long count, boolean failed) {
+		if (event != null)
+			JfrEvents.commit(event, target, classes, count, failed);
+	}
+}
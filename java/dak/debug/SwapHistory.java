@@ -0,0 +1,182 @@
+
+package dak.debug;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The versions of the classes which were running before each swap, so that a swap
+ * can be undone by sending them again. Each swap adds a generation, holding the
+ * previous bytes of the classes it replaced; only the latest generations are kept.
+ * <p/>
+ * The history is kept in memory, or in a directory so that it outlives the process:
+ * the bytes last sent for each class are in <code>active/</code>, and each generation
+ * in a numbered directory, one <code>&lt;class name&gt;.class</code> file per class.
+ * The files are read when needed, so a history on disk takes no memory.
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+public class SwapHistory {
+	private static final String ACTIVE = "active";
+
+	private final File dir;
+	private final int size;
+	// in memory only
+	private final Map<String, byte[]> active = new HashMap<String, byte[]>();
+	private final LinkedList<Map<String, byte[]>> generations = new LinkedList<Map<String, byte[]>>();
+
+	/**
+	 * A history kept in memory.
+	 * @param size the number of generations kept
+	 */
+	public SwapHistory(int size) {
+		this(null, size);
+	}
+
+	/**
+	 * @param dir the directory the history is kept in, null to keep it in memory
+	 * @param size the number of generations kept
+	 */
+	public SwapHistory(File dir, int size) {
+		this.dir = dir;
+		this.size = size;
+	}
+
+	/**
+	 * @return the bytes last sent for the class, null if it was never swapped
+	 */
+	public synchronized byte [] getActive(String className) throws IOException {
+		if (dir == null)
+			return active.get(className);
+		File file = classFile(new File(dir, ACTIVE), className);
+		return file.exists() ? Files.readAllBytes(file.toPath()) : null;
+	}
+
+	/**
+	 * Records a swap as a new generation.
+	 * @param before the bytes running before the swap, for the classes they are known of
+	 * @param after the bytes sent
+	 */
+	public synchronized void record(Map<String, byte[]> before, Map<String, byte[]> after) throws IOException {
+		if (dir == null) {
+			if (!before.isEmpty()) {
+				generations.addFirst(new LinkedHashMap<String, byte[]>(before));
+				while (generations.size() > size)
+					generations.removeLast();
+			}
+			active.putAll(after);
+			return;
+		}
+		if (!before.isEmpty()) {
+			List<Integer> numbers = generationNumbers();
+			int next = numbers.isEmpty() ? 1 : numbers.get(0).intValue() + 1;
+			write(new File(dir, String.valueOf(next)), before);
+			numbers.add(0, Integer.valueOf(next));
+			for (int i=size; i<numbers.size(); i++)
+				delete(new File(dir, String.valueOf(numbers.get(i))));
+		}
+		write(new File(dir, ACTIVE), after);
+	}
+
+	/**
+	 * @return the classes of the latest generation, as they were before its swap,
+	 * or null if there is none left
+	 */
+	public synchronized Map<String, byte[]> getPrevious() throws IOException {
+		if (dir == null)
+			return generations.isEmpty() ? null : new LinkedHashMap<String, byte[]>(generations.getFirst());
+		List<Integer> numbers = generationNumbers();
+		if (numbers.isEmpty())
+			return null;
+		Map<String, byte[]> ret = new LinkedHashMap<String, byte[]>();
+		File [] files = new File(dir, String.valueOf(numbers.get(0))).listFiles();
+		for (int i=0; files != null && i<files.length; i++) {
+			String name = files[i].getName();
+			if (name.endsWith(".class"))
+				ret.put(name.substring(0, name.length()-6), Files.readAllBytes(files[i].toPath()));
+		}
+		return ret;
+	}
+
+	/**
+	 * Takes the classes sent back out of the latest generation, which is dropped once
+	 * none is left: the classes which could not be sent back keep it, to be rolled
+	 * back again.
+	 * @param restored the classes now running the bytes of the generation
+	 */
+	public synchronized void rolledBack(Map<String, byte[]> restored) throws IOException {
+		if (dir == null) {
+			if (!generations.isEmpty()) {
+				Map<String, byte[]> latest = generations.getFirst();
+				latest.keySet().removeAll(restored.keySet());
+				if (latest.isEmpty())
+					generations.removeFirst();
+			}
+			active.putAll(restored);
+			return;
+		}
+		List<Integer> numbers = generationNumbers();
+		if (!numbers.isEmpty()) {
+			File latest = new File(dir, String.valueOf(numbers.get(0)));
+			for (String className : restored.keySet())
+				classFile(latest, className).delete();
+			String [] left = latest.list();
+			if (left == null || left.length == 0)
+				delete(latest);
+		}
+		write(new File(dir, ACTIVE), restored);
+	}
+
+	/**
+	 * @return the number of generations which can be rolled back
+	 */
+	public synchronized int getGenerations() {
+		return dir == null ? generations.size() : generationNumbers().size();
+	}
+
+	// newest first
+	private List<Integer> generationNumbers() {
+		List<Integer> ret = new ArrayList<Integer>();
+		String [] names = dir.list();
+		for (int i=0; names != null && i<names.length; i++) {
+			try {
+				ret.add(Integer.valueOf(names[i]));
+			} catch (NumberFormatException e) {
+				// active, or not ours
+			}
+		}
+		Integer [] sorted = ret.toArray(new Integer[ret.size()]);
+		Arrays.sort(sorted);
+		ret.clear();
+		for (int i=sorted.length-1; i>=0; i--)
+			ret.add(sorted[i]);
+		return ret;
+	}
+
+	private static void write(File generation, Map<String, byte[]> classes) throws IOException {
+		if (!generation.isDirectory() && !generation.mkdirs())
+			throw new IOException("cannot create " + generation);
+		for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+			Files.write(classFile(generation, entry.getKey()).toPath(), entry.getValue());
+		}
+	}
+
+	private static void delete(File generation) {
+		File [] files = generation.listFiles();
+		for (int i=0; files != null && i<files.length; i++)
+			files[i].delete();
+		generation.delete();
+	}
+
+	private static File classFile(File generation, String className) {
+		return new File(generation, className + ".class");
+	}
+}
@@ -0,0 +1,144 @@
+
+package dak.debug;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where the time of a swap goes, and what was done: the time spent in each phase
+ * (attaching, looking classes up, redefining them...) and counters such as the
+ * number of classes swapped or the bytes sent. The phases and counters are named
+ * by their users, and kept in the order they first show up.
+ * <p/>
+ * The stats can be updated from several threads at once.
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+public class SwapStats {
+	// nanoseconds spent and number of times, per phase
+	private final Map<String, long[]> phases = new LinkedHashMap<String, long[]>();
+	private final Map<String, Long> counters = new LinkedHashMap<String, Long>();
+	private final List<String> warnings = new ArrayList<String>();
+
+	/**
+	 * Adds the time since <code>start</code> to a phase.
+	 * @param phase the name of the phase
+	 * @param start the {@link System#nanoTime()} at the start of the phase
+	 */
+	public synchronized void time(String phase, long start) {
+		long [] time = phases.get(phase);
+		if (time == null) {
+			time = new long[2];
+			phases.put(phase, time);
+		}
+		time[0] += System.nanoTime() - start;
+		time[1]++;
+	}
+
+	/**
+	 * Adds to a counter.
+	 */
+	public synchronized void count(String counter, long n) {
+		Long value = counters.get(counter);
+		counters.put(counter, Long.valueOf(value == null ? n : value.longValue() + n));
+	}
+
+	/**
+	 * @return the value of the counter, 0 if it was never counted
+	 */
+	public synchronized long getCount(String counter) {
+		Long value = counters.get(counter);
+		return value == null ? 0 : value.longValue();
+	}
+
+	/**
+	 * @return the time spent in the phase, in milliseconds
+	 */
+	public synchronized long getMillis(String phase) {
+		long [] time = phases.get(phase);
+		return time == null ? 0 : time[0] / 1000000;
+	}
+
+	/**
+	 * Records something which went wrong without failing the swap, for the caller
+	 * to report.
+	 */
+	public synchronized void warn(String message) {
+		warnings.add(message);
+	}
+
+	/**
+	 * @return the warnings recorded since the last call
+	 */
+	public synchronized List<String> takeWarnings() {
+		List<String> ret = new ArrayList<String>(warnings);
+		warnings.clear();
+		return ret;
+	}
+
+	/**
+	 * @return the phases with their time, as in "attach 25 ms, redefine 110 ms"
+	 */
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, long[]> phase : phases.entrySet()) {
+			if (sb.length() > 0) sb.append(", ");
+			sb.append(phase.getKey()).append(' ').append(phase.getValue()[0] / 1000000).append(" ms");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Appends the stats as a JSON object: <code>{"phases": {"attach": {"ms": 25.1,
+	 * "count": 1}, ...}, "counters": {"swapped": 12, ...}}</code>.
+	 */
+	public synchronized void toJson(StringBuilder sb) {
+		sb.append("{\"phases\": {");
+		String sep = "";
+		for (Map.Entry<String, long[]> phase : phases.entrySet()) {
+			sb.append(sep);
+			quote(sb, phase.getKey());
+			sb.append(": {\"ms\": ").append(phase.getValue()[0] / 1000 / 1000.0)
+				.append(", \"count\": ").append(phase.getValue()[1]).append('}');
+			sep = ", ";
+		}
+		sb.append("}, \"counters\": {");
+		sep = "";
+		for (Map.Entry<String, Long> counter : counters.entrySet()) {
+			sb.append(sep);
+			quote(sb, counter.getKey());
+			sb.append(": ").append(counter.getValue());
+			sep = ", ";
+		}
+		sb.append("}}");
+	}
+
+	/**
+	 * Appends a string as a JSON string literal, null as null.
+	 */
+	public static void quote(StringBuilder sb, String value) {
+		if (value == null) {
+			sb.append("null");
+			return;
+		}
+		sb.append('"');
+		for (int i=0; i<value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '"':	sb.append("\\\""); break;
+				case '\\':	sb.append("\\\\"); break;
+				case '\n':	sb.append("\\n"); break;
+				case '\r':	sb.append("\\r"); break;
+				case '\t':	sb.append("\\t"); break;
+				default:
+					if (c < 0x20)
+						sb.append(String.format("\\u%04x", Integer.valueOf(c)));
+					else
+						sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+}
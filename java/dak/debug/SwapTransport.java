@@ -0,0 +1,62 @@
+
+package dak.debug;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A way of replacing classes on a VM: through JDWP ({@link HotSwapHelper}), through
+ * a {@link HotSwapDaemon}, or through a {@link HotSwapAgent} loaded in the VM.
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+public interface SwapTransport {
+
+	/**
+	 * Looks up several classes at once.
+	 * @return the classes which are loaded on the VM, and can thus be replaced
+	 */
+	Set<String> findLoaded(Collection<String> classNames) throws Exception;
+
+	/**
+	 * Replaces a set of classes with as few redefinition requests as possible. The
+	 * classes not loaded on the VM are left out.
+	 * @param classes the new class bytes, keyed by class name
+	 * @throws HotSwapException if some of the classes could not be redefined
+	 */
+	void replace(Map<String, byte[]> classes) throws Exception;
+
+	/**
+	 * Registers the class file to replace the class with as soon as the VM loads it.
+	 */
+	void replaceOnLoad(String className, File classFile) throws Exception;
+
+	/**
+	 * Reads the bytes the VM currently runs for several classes, so that they can be
+	 * sent again to undo a swap. Not every transport can: JDWP has no way to get a
+	 * class file back.
+	 * @return the class bytes, keyed by class name, for the classes found
+	 */
+	Map<String, byte[]> fetch(Collection<String> classNames) throws Exception;
+
+	/**
+	 * Sends back the classes replaced by the latest swap, as they were before it,
+	 * in a single batch.
+	 * @return the number of classes rolled back, 0 if there was no swap to undo
+	 * @throws HotSwapException if some of the classes could not be redefined
+	 */
+	int rollback() throws Exception;
+
+	/**
+	 * Restricts the classes looked up and replaced to those of some class loaders.
+	 * @param filter a {@link ClassLoaderFilter} pattern, null for all the loaders
+	 */
+	void setClassLoaderFilter(String filter) throws Exception;
+
+	/**
+	 * Ends the connection.
+	 */
+	void close() throws Exception;
+}
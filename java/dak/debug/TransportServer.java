@@ -0,0 +1,293 @@
+
+package dak.debug;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Server side of the protocol spoken by {@link DaemonClient}: serves the requests of
+ * one client at a time on a local socket, with the transport given by the subclass.
+ * <p/>
+ * The port is open to anyone on the machine, so a client must first give a token,
+ * which the subclass hands out to those allowed to swap classes. A client which
+ * doesn't give one in time is turned away.
+ * <p/>
+ * What goes wrong outside of a request, such as a class failing to be replaced
+ * when it gets loaded, is kept for the clients to ask for with the other warnings.
+ * <p/>
+ * This class is also loaded in the target VM along with {@link HotSwapAgent}, so
+ * it must not depend on JDI.
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+abstract class TransportServer {
+	// requests
+	static final int IS_LOADED = 'L';
+	static final int REPLACE = 'R';
+	static final int REPLACE_ON_LOAD = 'D';
+	static final int SET_FILTER = 'C';
+	static final int FETCH = 'B';
+	static final int ROLLBACK = 'U';
+	static final int WARNINGS = 'W';
+	static final int CLOSE = 'Q';
+	static final int SHUTDOWN = 'S';
+	// replies
+	static final int OK = 'K';
+	static final int FAILED = 'F';
+	static final int ERROR = 'E';
+
+	// how long a client has to give its token, in milliseconds
+	private static final int TOKEN_TIMEOUT = 10000;
+	// the warnings kept for the clients, beyond which the oldest are dropped
+	private static final int MAX_WARNINGS = 100;
+
+	private volatile boolean running = true;
+	// the class loader filter of the current client
+	private String loaderFilter;
+	// the warnings no client asked for yet
+	private final LinkedList<String> warnings = new LinkedList<String>();
+
+	/**
+	 * @return the transport to serve the next request with
+	 */
+	protected abstract SwapTransport transport() throws Exception;
+
+	/**
+	 * Tells whether a request which failed is worth trying once more, with a
+	 * new transport.
+	 */
+	protected boolean retry(Exception e) {
+		return false;
+	}
+
+	/**
+	 * Called after each request, whatever its outcome.
+	 */
+	protected void served(SwapTransport transport) { }
+
+	/**
+	 * Logs what the server does. Logs nothing by default: the clients get the
+	 * warnings, and a server in the target VM stays out of its output.
+	 */
+	protected void log(String message) { }
+
+	/**
+	 * Keeps a warning for the next client to ask for them, and logs it.
+	 */
+	protected void warn(String message) {
+		synchronized (warnings) {
+			warnings.add(message);
+			while (warnings.size() > MAX_WARNINGS)
+				warnings.removeFirst();
+		}
+		log(message);
+	}
+
+	/**
+	 * Checks the token a client starts with, before any of its requests is read.
+	 * @return null to serve the client, or why it is turned away
+	 */
+	protected abstract String checkToken(String token);
+
+	/**
+	 * Serves the clients, one at a time, until one of them asks for a shutdown.
+	 */
+	void serve(ServerSocket server) throws IOException {
+		try {
+			while (running) {
+				Socket socket = server.accept();
+				try {
+					serve(socket);
+				} catch (IOException e) {
+					log("client failed: " + e);
+				} finally {
+					socket.close();
+				}
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+	private void serve(Socket socket) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		loaderFilter = null;
+		if (!authenticate(socket, in, out))
+			return;
+		while (true) {
+			int request;
+			try {
+				request = in.readUnsignedByte();
+			} catch (EOFException e) {
+				return;
+			}
+			if (request == CLOSE)
+				return;
+			if (request == SHUTDOWN) {
+				running = false;
+				return;
+			}
+			if (request == SET_FILTER) {
+				// applied with the next requests, so the transport can change in between
+				String filter = in.readUTF();
+				loaderFilter = filter.length() == 0 ? null : filter;
+				out.writeByte(OK);
+				out.flush();
+				continue;
+			}
+			if (request == WARNINGS) {
+				List<String> taken;
+				synchronized (warnings) {
+					taken = new ArrayList<String>(warnings);
+					warnings.clear();
+				}
+				out.writeByte(OK);
+				out.writeInt(taken.size());
+				for (String warning : taken)
+					out.writeUTF(warning);
+				out.flush();
+				continue;
+			}
+			handle(request, in, out);
+			out.flush();
+		}
+	}
+
+	private boolean authenticate(Socket socket, DataInputStream in, DataOutputStream out) throws IOException {
+		// a client which doesn't give it doesn't hold the others up for long
+		socket.setSoTimeout(TOKEN_TIMEOUT);
+		String token = in.readUTF();
+		socket.setSoTimeout(0);
+		String refusal = checkToken(token);
+		if (refusal == null) {
+			out.writeByte(OK);
+		}
+		else {
+			out.writeByte(ERROR);
+			out.writeUTF(refusal);
+		}
+		out.flush();
+		return refusal == null;
+	}
+
+	/**
+	 * @return a new random token, for a client to be let in with
+	 */
+	static String newToken() {
+		byte [] random = new byte[16];
+		new SecureRandom().nextBytes(random);
+		return new BigInteger(1, random).toString(16);
+	}
+
+	private void handle(int request, DataInputStream in, DataOutputStream out) throws IOException {
+		String [] names = null;
+		Map<String, byte[]> classes = null;
+		File classFile = null;
+		// read the whole request first, so the stream stays in step whatever happens
+		switch (request) {
+			case IS_LOADED:
+			case FETCH:
+				names = new String[in.readInt()];
+				for (int i=0; i<names.length; i++) {
+					names[i] = in.readUTF();
+				}
+				break;
+			case REPLACE:
+				int count = in.readInt();
+				classes = new LinkedHashMap<String, byte[]>();
+				for (int i=0; i<count; i++) {
+					String className = in.readUTF();
+					byte [] classBytes = new byte[in.readInt()];
+					in.readFully(classBytes);
+					classes.put(className, classBytes);
+				}
+				break;
+			case REPLACE_ON_LOAD:
+				names = new String[] { in.readUTF() };
+				classFile = new File(in.readUTF());
+				break;
+			case ROLLBACK:
+				break;
+			default:
+				throw new IOException("unknown request " + request);
+		}
+		for (int attempt=0; ; attempt++) {
+			SwapTransport transport = null;
+			try {
+				transport = transport();
+				transport.setClassLoaderFilter(loaderFilter);
+				switch (request) {
+					case IS_LOADED:
+						Set<String> loaded = transport.findLoaded(Arrays.asList(names));
+						out.writeByte(OK);
+						for (int i=0; i<names.length; i++) {
+							out.writeBoolean(loaded.contains(names[i]));
+						}
+						break;
+					case REPLACE:
+						transport.replace(classes);
+						out.writeByte(OK);
+						break;
+					case REPLACE_ON_LOAD:
+						transport.replaceOnLoad(names[0], classFile);
+						out.writeByte(OK);
+						break;
+					case FETCH:
+						Map<String, byte[]> fetched = transport.fetch(Arrays.asList(names));
+						out.writeByte(OK);
+						out.writeInt(fetched.size());
+						for (Map.Entry<String, byte[]> entry : fetched.entrySet()) {
+							out.writeUTF(entry.getKey());
+							out.writeInt(entry.getValue().length);
+							out.write(entry.getValue());
+						}
+						break;
+					case ROLLBACK:
+						int rolledBack = transport.rollback();
+						out.writeByte(OK);
+						out.writeInt(rolledBack);
+						break;
+				}
+				return;
+			} catch (HotSwapException e) {
+				out.writeByte(FAILED);
+				out.writeInt(e.getFailures().size());
+				for (Map.Entry<String, Exception> entry : e.getFailures().entrySet()) {
+					out.writeUTF(entry.getKey());
+					out.writeUTF(String.valueOf(entry.getValue()));
+				}
+				return;
+			} catch (Exception e) {
+				if (attempt > 0 || !retry(e)) {
+					writeError(out, e);
+					return;
+				}
+			} finally {
+				if (transport != null)
+					served(transport);
+			}
+		}
+	}
+
+	private void writeError(DataOutputStream out, Exception e) throws IOException {
+		out.writeByte(ERROR);
+		out.writeUTF(String.valueOf(e));
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright  2000-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dak.ant.taskdefs;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Checks the engines of {@link SearchReplace} against plain string replacements,
+ * with the occurrences cut by the reads of the input and by the window of the regex.
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+public class ReplacerTest {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	// the characters of the regex window, before the part kept for the next one
+	private static final int WINDOW = 64*1024;
+
+	@Test
+	public void streamAcrossReads() throws IOException {
+		Random random = new Random(1);
+		for (int i=0; i<2000; i++) {
+			String text = randomText(random, "abc", random.nextInt(40));
+			String find = randomText(random, "abc", 1 + random.nextInt(4));
+			Replacer replacer = new StreamReplacer(find.getBytes(UTF8), "X".getBytes(UTF8));
+			for (int read=1; read<8; read++)
+				assertEquals(text + " / " + find, text.replace(find, "X"), replace(replacer, text, read));
+		}
+	}
+
+	@Test
+	public void streamFallsBack() throws IOException {
+		Replacer replacer = new StreamReplacer("abab".getBytes(UTF8), "X".getBytes(UTF8));
+		for (int read=1; read<8; read++)
+			assertEquals("abaXbX", replace(replacer, "abaababbabab", read));
+	}
+
+	@Test
+	public void multiAcrossReads() throws IOException {
+		Random random = new Random(2);
+		for (int i=0; i<2000; i++) {
+			String text = randomText(random, "abc", random.nextInt(40));
+			List<String> find = new ArrayList<String>();
+			while (find.size() < 3) {
+				String one = randomText(random, "abc", 1 + random.nextInt(4));
+				if (!find.contains(one))
+					find.add(one);
+			}
+			List<byte[]> findBytes = new ArrayList<byte[]>();
+			List<byte[]> replaceBytes = new ArrayList<byte[]>();
+			for (int j=0; j<find.size(); j++) {
+				findBytes.add(find.get(j).getBytes(UTF8));
+				replaceBytes.add(String.valueOf(j).getBytes(UTF8));
+			}
+			Replacer replacer = new MultiReplacer(findBytes, replaceBytes);
+			for (int read=1; read<8; read++)
+				assertEquals(text + " / " + find, leftmostLongest(text, find), replace(replacer, text, read));
+		}
+	}
+
+	@Test
+	public void regexAcrossReads() throws IOException {
+		Random random = new Random(3);
+		Pattern pattern = Pattern.compile("(?<=a)b+c?");
+		Replacer replacer = new RegexReplacer(pattern, "[$0]", UTF8, 4);
+		for (int i=0; i<500; i++) {
+			String text = randomText(random, "abc\u00e9", random.nextInt(40));
+			if (text.matches(".*b{4,}.*"))
+				continue;
+			for (int read=1; read<8; read++)
+				assertEquals(text, pattern.matcher(text).replaceAll("[$0]"), replace(replacer, text, read));
+		}
+	}
+
+	/**
+	 * The matches which end at the end of a window, or look past it, are taken only
+	 * once the next characters are read.
+	 */
+	@Test
+	public void regexAcrossWindows() throws IOException {
+		String [] expressions = {"c$", "c\\b", "\\bc", "c(?=d)", "(?<=a)c", "cd?$", "ac|acdd"};
+		int [] maxMatches = {1, 1, 1, 1, 1, 2, 4};
+		Random random = new Random(4);
+		for (int e=0; e<expressions.length; e++) {
+			Pattern pattern = Pattern.compile(expressions[e]);
+			Replacer replacer = new RegexReplacer(pattern, "X", UTF8, maxMatches[e]);
+			for (int end=-4; end<=4; end++) {
+				for (int i=0; i<4; i++) {
+					// up to a few characters around the end of the first window
+					String text = randomText(random, "acd ", WINDOW + 2*maxMatches[e] + end);
+					assertEquals(expressions[e] + " ending at " + end,
+						pattern.matcher(text).replaceAll("X"), replace(replacer, text, 4096));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void regexGroups() throws IOException {
+		Replacer replacer = new RegexReplacer(Pattern.compile("(?<key>[a-z]+)=(\\d+)"), "$2:${key}\\$", UTF8, 16);
+		assertEquals("1:a$ 22:bc$", replace(replacer, "a=1 bc=22", 3));
+	}
+
+	private static String replace(Replacer replacer, String text, int read) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		replacer.replace(new TrickleInputStream(text.getBytes(UTF8), read), out);
+		return new String(out.toByteArray(), UTF8);
+	}
+
+	private static String randomText(Random random, String alphabet, int length) {
+		char [] chars = new char[length];
+		for (int i=0; i<length; i++)
+			chars[i] = alphabet.charAt(random.nextInt(alphabet.length()));
+		return new String(chars);
+	}
+
+	/**
+	 * Replaces the leftmost occurrences, the longest of those starting at the same
+	 * place, with the index of what they are.
+	 */
+	private static String leftmostLongest(String text, List<String> find) {
+		StringBuilder ret = new StringBuilder();
+		int i = 0;
+		while (i < text.length()) {
+			int best = -1;
+			for (int j=0; j<find.size(); j++) {
+				if (text.startsWith(find.get(j), i)
+						&& (best < 0 || find.get(j).length() > find.get(best).length()))
+					best = j;
+			}
+			if (best < 0) {
+				ret.append(text.charAt(i++));
+			}
+			else {
+				ret.append(best);
+				i += find.get(best).length();
+			}
+		}
+		return ret.toString();
+	}
+
+	/**
+	 * Hands out a few bytes at a time, as a slow input would.
+	 */
+	private static class TrickleInputStream extends InputStream {
+		private final InputStream in;
+		private final int read;
+
+		TrickleInputStream(byte [] bytes, int read) {
+			this.in = new ByteArrayInputStream(bytes);
+			this.read = read;
+		}
+
+		public int read() throws IOException {
+			return in.read();
+		}
+
+		public int read(byte [] b, int off, int len) throws IOException {
+			return in.read(b, off, Math.min(len, read));
+		}
+	}
+}
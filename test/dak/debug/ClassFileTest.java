@@ -0,0 +1,65 @@
+
+package dak.debug;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Checks that the canonical digest leaves out the debug attributes, and only them,
+ * and the outline read along.
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+public class ClassFileTest {
+	private static final String SOURCE =
+		"public class Digested {\n"
+		+ "\tint value(int x) {\n"
+		+ "\t\tint y = x * 2;\n"
+		+ "\t\treturn y + 1;\n"
+		+ "\t}\n"
+		+ "}\n";
+
+	@Test
+	public void movedLinesLeftOut() throws IOException {
+		String moved = "\n\n// moved\n" + SOURCE.replace("\t\treturn", "\n\t\treturn");
+		// the constant pool is taken as it is: the names of the attributes count
+		String [] debug = {"-g", "-g:lines,source", "-g:none"};
+		for (int i=0; i<debug.length; i++)
+			assertEquals(debug[i], digest(SOURCE, debug[i]), digest(moved, debug[i]));
+	}
+
+	@Test
+	public void codeChangeSeen() throws IOException {
+		assertNotEquals(digest(SOURCE, "-g"), digest(SOURCE.replace("y + 1", "y + 2"), "-g"));
+	}
+
+	@Test
+	public void outline() throws IOException {
+		ClassFile classFile = ClassFile.parse(Compiler.compile("Digested", SOURCE, "-g"));
+		assertEquals("Digested", classFile.getName());
+		assertEquals("java.lang.Object", classFile.getSuperName());
+		assertEquals(0, classFile.getFields().size());
+		// the default constructor and value
+		assertEquals(2, classFile.getMethods().size());
+	}
+
+	@Test(expected = IOException.class)
+	public void notAClassFile() throws IOException {
+		ClassFile.parse(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+	}
+
+	@Test(expected = IOException.class)
+	public void truncated() throws IOException {
+		byte [] bytes = Compiler.compile("Digested", SOURCE, "-g");
+		ClassFile.parse(Arrays.copyOf(bytes, bytes.length / 2));
+	}
+
+	private static String digest(String source, String debug) throws IOException {
+		return ClassFile.parse(Compiler.compile("Digested", source, debug)).getCanonicalDigest();
+	}
+}
@@ -0,0 +1,97 @@
+
+package dak.debug;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Checks which changes between two versions of a class the schemas turn down.
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+public class ClassSchemaTest {
+	private static final String BODY =
+		"\tprivate int count;\n"
+		+ "\tpublic int value(int x) { return x + count; }\n";
+
+	@Test
+	public void codeChange() throws IOException {
+		assertNull(change("public class S { " + BODY + " }",
+			"public class S { " + BODY.replace("x + count", "x * count") + " }"));
+	}
+
+	@Test
+	public void privateHelperAdded() throws IOException {
+		assertNull(change("public class S { " + BODY + " }",
+			"public class S { " + BODY + " private static int helper() { return 1; } }"));
+	}
+
+	@Test
+	public void methodAdded() throws IOException {
+		assertEquals("method added: other()V", change("public class S { " + BODY + " }",
+			"public class S { " + BODY + " public void other() { } }"));
+	}
+
+	@Test
+	public void methodRemoved() throws IOException {
+		assertEquals("method removed: value(I)I", change("public class S { " + BODY + " }",
+			"public class S { private int count; }"));
+	}
+
+	@Test
+	public void methodModifiersChanged() throws IOException {
+		assertEquals("method modifiers changed: value(I)I", change("public class S { " + BODY + " }",
+			"public class S { " + BODY.replace("public int value", "public synchronized int value") + " }"));
+	}
+
+	@Test
+	public void fieldAdded() throws IOException {
+		assertEquals("field added: other J", change("public class S { " + BODY + " }",
+			"public class S { " + BODY + " long other; }"));
+	}
+
+	@Test
+	public void fieldRemoved() throws IOException {
+		assertEquals("field removed: count I", change("public class S { " + BODY + " }",
+			"public class S { public int value(int x) { return x; } }"));
+	}
+
+	@Test
+	public void fieldModifiersChanged() throws IOException {
+		assertEquals("field modifiers changed: count I", change("public class S { " + BODY + " }",
+			"public class S { " + BODY.replace("private int count", "private volatile int count") + " }"));
+	}
+
+	@Test
+	public void superClassChanged() throws IOException {
+		assertEquals("super class changed from java.lang.Object to java.lang.Number",
+			change("public abstract class S { }", "public abstract class S extends Number { }"));
+	}
+
+	@Test
+	public void interfacesChanged() throws IOException {
+		assertEquals("interfaces changed from [] to [java.lang.Runnable]",
+			change("public abstract class S { }", "public abstract class S implements Runnable { }"));
+	}
+
+	@Test
+	public void classModifiersChanged() throws IOException {
+		assertEquals("class modifiers changed from \"public\" to \"public final\"",
+			change("public class S { }", "public final class S { }"));
+	}
+
+	@Test
+	public void classChangedToInterface() throws IOException {
+		assertEquals("class changed to interface",
+			change("public abstract class S { }", "public interface S { }"));
+	}
+
+	private static String change(String running, String newer) throws IOException {
+		ClassSchema before = new ClassSchema(ClassFile.parse(Compiler.compile("S", running)));
+		return before.incompatibleChange(new ClassSchema(ClassFile.parse(Compiler.compile("S", newer))));
+	}
+}
@@ -0,0 +1,48 @@
+
+package dak.debug;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles a class from its source, for the tests which look at class files.
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+class Compiler {
+
+	/**
+	 * @param className the name of a class of the default package
+	 * @param source its source
+	 * @param options the options of javac, such as -g:none
+	 * @return the bytes of the class file
+	 */
+	static byte [] compile(String className, String source, String... options) throws IOException {
+		JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+		if (javac == null)
+			throw new IllegalStateException("the tests run on a JDK");
+		File dir = Files.createTempDirectory("hotswap-test").toFile();
+		try {
+			File file = new File(dir, className + ".java");
+			Files.write(file.toPath(), source.getBytes(StandardCharsets.UTF_8));
+			List<String> args = new ArrayList<String>(Arrays.asList(options));
+			args.addAll(Arrays.asList("-nowarn", "-d", dir.getPath(), file.getPath()));
+			if (javac.run(null, null, null, args.toArray(new String[args.size()])) != 0)
+				throw new IllegalStateException("cannot compile " + className);
+			return Files.readAllBytes(new File(dir, className + ".class").toPath());
+		} finally {
+			File [] files = dir.listFiles();
+			for (int i=0; files != null && i<files.length; i++)
+				files[i].delete();
+			dir.delete();
+		}
+	}
+}
@@ -0,0 +1,134 @@
+
+package dak.debug;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs the same checks on a history in memory and on one in a directory.
+ *
+ * @author David A. Kavanagh <a href="mailto:dak@dotech.com">dak@dotech.com</a>
+ */
+public class SwapHistoryTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void rollBackInMemory() throws IOException {
+		rollBack(new SwapHistory(3));
+	}
+
+	@Test
+	public void rollBackOnDisk() throws IOException {
+		rollBack(new SwapHistory(folder.newFolder("history"), 3));
+	}
+
+	@Test
+	public void partialRollBackInMemory() throws IOException {
+		partialRollBack(new SwapHistory(3));
+	}
+
+	@Test
+	public void partialRollBackOnDisk() throws IOException {
+		partialRollBack(new SwapHistory(folder.newFolder("history"), 3));
+	}
+
+	@Test
+	public void sizeInMemory() throws IOException {
+		size(new SwapHistory(2));
+	}
+
+	@Test
+	public void sizeOnDisk() throws IOException {
+		size(new SwapHistory(folder.newFolder("history"), 2));
+	}
+
+	@Test
+	public void outlivesTheProcess() throws IOException {
+		File dir = folder.newFolder("history");
+		new SwapHistory(dir, 3).record(classes("A", "a1"), classes("A", "a2"));
+		SwapHistory reopened = new SwapHistory(dir, 3);
+		assertEquals(1, reopened.getGenerations());
+		assertArrayEquals(bytes("a2"), reopened.getActive("A"));
+		assertArrayEquals(bytes("a1"), reopened.getPrevious().get("A"));
+	}
+
+	private static void rollBack(SwapHistory history) throws IOException {
+		assertNull(history.getActive("A"));
+		assertNull(history.getPrevious());
+		// the first swap of a class whose running bytes aren't known adds no generation
+		history.record(Collections.<String, byte[]>emptyMap(), classes("A", "a1"));
+		assertEquals(0, history.getGenerations());
+		assertArrayEquals(bytes("a1"), history.getActive("A"));
+
+		history.record(classes("A", "a1"), classes("A", "a2"));
+		history.record(classes("A", "a2", "B", "b1"), classes("A", "a3", "B", "b2"));
+		assertEquals(2, history.getGenerations());
+		assertArrayEquals(bytes("a3"), history.getActive("A"));
+
+		Map<String, byte[]> previous = history.getPrevious();
+		assertEquals(2, previous.size());
+		assertArrayEquals(bytes("a2"), previous.get("A"));
+		assertArrayEquals(bytes("b1"), previous.get("B"));
+		history.rolledBack(previous);
+		assertEquals(1, history.getGenerations());
+		assertArrayEquals(bytes("a2"), history.getActive("A"));
+		assertArrayEquals(bytes("b1"), history.getActive("B"));
+
+		previous = history.getPrevious();
+		assertArrayEquals(bytes("a1"), previous.get("A"));
+		history.rolledBack(previous);
+		assertEquals(0, history.getGenerations());
+		assertNull(history.getPrevious());
+	}
+
+	private static void partialRollBack(SwapHistory history) throws IOException {
+		history.record(classes("A", "a1", "B", "b1"), classes("A", "a2", "B", "b2"));
+		// B could not be sent back: it stays in the generation
+		history.rolledBack(classes("A", "a1"));
+		assertEquals(1, history.getGenerations());
+		Map<String, byte[]> previous = history.getPrevious();
+		assertEquals(Collections.singleton("B"), previous.keySet());
+		assertArrayEquals(bytes("a1"), history.getActive("A"));
+		assertArrayEquals(bytes("b2"), history.getActive("B"));
+
+		history.rolledBack(previous);
+		assertEquals(0, history.getGenerations());
+		assertArrayEquals(bytes("b1"), history.getActive("B"));
+	}
+
+	private static void size(SwapHistory history) throws IOException {
+		history.record(classes("A", "a1"), classes("A", "a2"));
+		history.record(classes("A", "a2"), classes("A", "a3"));
+		history.record(classes("A", "a3"), classes("A", "a4"));
+		assertEquals(2, history.getGenerations());
+		history.rolledBack(history.getPrevious());
+		history.rolledBack(history.getPrevious());
+		// the oldest generation was dropped
+		assertArrayEquals(bytes("a2"), history.getActive("A"));
+		assertNull(history.getPrevious());
+	}
+
+	// name, version, name, version...
+	private static Map<String, byte[]> classes(String... namesAndVersions) {
+		Map<String, byte[]> ret = new LinkedHashMap<String, byte[]>();
+		for (int i=0; i<namesAndVersions.length; i+=2)
+			ret.put(namesAndVersions[i], bytes(namesAndVersions[i+1]));
+		return ret;
+	}
+
+	private static byte [] bytes(String version) {
+		return version.getBytes();
+	}
+}